@@ -6,6 +6,7 @@ import android.app.Dialog;
 import android.content.res.Resources;
 import android.os.Bundle;
 import android.text.Html;
+import android.util.Log;
 import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -45,6 +46,7 @@ public class ActivityMain extends Activity
     protected ProgressBar processingIndicator;
     
     private static final int COLOR_MENU_GROUP = 144; // Identifier for the different color options in the menu
+    private static final String MEMORY_LOG_TAG = "FractalMemory"; // Tag of the log messages about the memory taken by the buffers //$NON-NLS-1$
    
     
 	
@@ -180,6 +182,7 @@ public class ActivityMain extends Activity
          colorOptionMenu.add(COLOR_MENU_GROUP, MenuItems.COLOR.ordinal(),           0, "Color");
          colorOptionMenu.add(COLOR_MENU_GROUP, MenuItems.COLOR_INVERTED.ordinal(),  0, "Color Inverted");
          colorOptionMenu.add(COLOR_MENU_GROUP, MenuItems.BW.ordinal(),  0, "B&W");
+         colorOptionMenu.add(COLOR_MENU_GROUP, MenuItems.HISTOGRAM.ordinal(),  0, "Histogram");
         SubMenu fractalTypeMenu = menu.addSubMenu(0,MenuItems.FRACTALTYPE.ordinal(),0, "Fractal Type"); // Fractal type with sub menu options
          fractalTypeMenu.add(0, MenuItems.MANDELBROTSET.ordinal(),  0, "Z[n+1]=Z[n]^2+C, where C=Z[0]");
          fractalTypeMenu.add(0, MenuItems.CUSTOMFRACTAL.ordinal(),  0, "Z[n+1]=Z[n]^2+C, where you choose the C");
@@ -323,10 +326,44 @@ public class ActivityMain extends Activity
     {
         super.onDestroy();
         System.out.println("On Destroy -----------------------------");
-        //TODO add saving of the current fractal location
+        fractalSurfaceView.onDestroy(); // The location is saved by the checkpoint written while pausing
     }
 
 
+    @Override
+    public void onLowMemory()
+    {
+        super.onLowMemory();
+        BufferPool.getInstance().trimTo(0); // Drop all free buffers
+        if(Log.isLoggable(MEMORY_LOG_TAG, Log.DEBUG))
+        	Log.d(MEMORY_LOG_TAG, "On Low Memory: " + BufferPool.getInstance()); //$NON-NLS-1$
+    }
+    
+    
+    @Override
+    public void onTrimMemory(int level)
+    {
+        super.onTrimMemory(level);
+        
+        // Keep some free buffers while the application is only asked to be moderate, otherwise drop all of them
+        if(level >= TRIM_MEMORY_RUNNING_LOW)
+            BufferPool.getInstance().trimTo(0);
+        else
+            BufferPool.getInstance().trimTo(BufferPool.MAX_FREE_BYTES/2);
+        if(Log.isLoggable(MEMORY_LOG_TAG, Log.DEBUG))
+        	Log.d(MEMORY_LOG_TAG, "On Trim Memory " + level + ": " + BufferPool.getInstance()); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+
+    @Override
+    public void onBackPressed()
+    {
+        // Step back through the visited places first, leave the application only when there are none
+        if(fractalSurfaceView.stepBack() == false)
+            super.onBackPressed();
+    }
+    
+    
     @Override
     public boolean onTouchEvent(MotionEvent event)
     {
@@ -0,0 +1,85 @@
+package my.potty.fract;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+
+/** PowerSignals of the device, read from the sticky battery broadcast. The broadcast is read
+ *  at most once per REFRESH_INTERVAL, as the policy asks for the signals very often.
+ *
+ * @author Pottry
+ *
+ */
+class BatterySignals implements PowerSignals
+{
+	private static final long REFRESH_INTERVAL = 10000; // How often (in ms) the battery state is read
+
+	private final Context context;
+	private long 		  lLastRefreshTime = -REFRESH_INTERVAL;
+
+	// The last read state - guarded by this
+	private int 	iBatteryPercent = 100;
+	private boolean bCharging 		= true;
+	private float 	fTemperature 	= 25f;
+
+
+
+	/** Creates the signals source
+	 *
+	 * @param context - any context of the application
+	 */
+	BatterySignals(Context context)
+	{
+		this.context = context.getApplicationContext();
+	}
+
+
+	@Override
+	public synchronized int getBatteryPercent()
+	{
+		refresh();
+		return iBatteryPercent;
+	}
+
+	@Override
+	public synchronized boolean isCharging()
+	{
+		refresh();
+		return bCharging;
+	}
+
+	@Override
+	public synchronized float getTemperature()
+	{
+		refresh();
+		return fTemperature;
+	}
+
+
+	/** Reads the battery state if the last read one is too old
+	 */
+	private void refresh()
+	{
+		long lNow = System.currentTimeMillis();
+		if(lNow - lLastRefreshTime < REFRESH_INTERVAL)
+			return;
+		lLastRefreshTime = lNow;
+
+		// A sticky broadcast is returned at once, no receiver is needed
+		Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+		if(battery == null)
+			return;
+
+		int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+		int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+		if(level >= 0 && scale > 0)
+			iBatteryPercent = level*100/scale;
+
+		bCharging = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+
+		int temperature = battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, Integer.MIN_VALUE);
+		if(temperature != Integer.MIN_VALUE)
+			fTemperature = temperature/10f; // In tenths of a degree
+	}
+}
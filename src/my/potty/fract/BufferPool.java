@@ -0,0 +1,332 @@
+package my.potty.fract;
+
+import java.util.LinkedList;
+import java.util.ListIterator;
+
+import android.graphics.Bitmap;
+
+/** Keeps the big buffers (arrays with a value for each pixel and bitmaps) which are not used anymore,
+ *  so that the next buffer of the same size class is taken from the pool instead of being allocated.
+ *  The size class of a buffer is its type and its exact number of elements (width and height for
+ *  bitmaps) - the users rely on the length of the arrays, and the drawing area has only a few sizes.
+ *
+ *  The pool counts the bytes leased to each subsystem of the application and the bytes it keeps
+ *  free, so the memory taken by the buffers can be watched. The free buffers are bounded - the
+ *  least recently released are dropped first, and all of them can be dropped when the system
+ *  runs low on memory (see trimTo()). One free buffer of the current drawing area bigger than the
+ *  bound is kept anyway, so the biggest buffers of a big screen are still reused, and the buffers of other sizes are
+ *  dropped when the drawing area is resized (see setDrawingArea()). Can be used by any thread.
+ *
+ * @author Pottry
+ *
+ */
+public class BufferPool
+{
+	/** The parts of the application the buffers are leased to */
+	public static enum Subsystem
+	{
+		CALCULATION, // Images being calculated and the images kept by the drawing thread
+		DISPLAY,	 // Frames, colors and bitmaps of the display thread
+		COORDINATES  // Complex coordinates of the pixels of the drawing area
+	}
+
+	public static final long MAX_FREE_BYTES = 8*1024*1024; // The most memory the free buffers of the shared pool may take (besides one buffer of the drawing area)
+
+	private static final BufferPool sharedPool = new BufferPool(MAX_FREE_BYTES);
+
+	private final LinkedList<Object> free = new LinkedList<Object>(); // Free buffers, the least recently released first
+	private final long[] leasedBytes 	  = new long[Subsystem.values().length];
+	private final long 	 maxFreeBytes;
+	private long 		 lFreeBytes = 0;
+	private long 		 lPeakBytes = 0; // The most bytes leased and free at once
+	private int 		 iAreaWidth  = 0; // Size of the drawing area (0 before it is known)
+	private int 		 iAreaHeight = 0;
+
+
+
+	/** Creates an empty pool
+	 *
+	 * @param maxFreeBytes - the most memory the free buffers may take (besides one buffer of the drawing area)
+	 */
+	public BufferPool(long maxFreeBytes)
+	{
+		this.maxFreeBytes = maxFreeBytes;
+	}
+
+
+	/** Returns the pool shared by the whole application
+	 */
+	public static BufferPool getInstance()
+	{
+		return sharedPool;
+	}
+
+
+	/** Leases an array. Its values are undefined.
+	 *
+	 * @param length - number of elements
+	 * @param owner  - the subsystem the array is counted to
+	 * @return - the array (return it by release() when it is not used anymore)
+	 */
+	public synchronized char[] leaseChars(int length, Subsystem owner)
+	{
+		char[] buffer = (char[])take(char[].class, length, 1);
+		if(buffer == null)
+			buffer = new char[length];
+		count(owner, getByteCount(buffer));
+		return buffer;
+	}
+
+	/** See leaseChars() */
+	public synchronized int[] leaseInts(int length, Subsystem owner)
+	{
+		int[] buffer = (int[])take(int[].class, length, 1);
+		if(buffer == null)
+			buffer = new int[length];
+		count(owner, getByteCount(buffer));
+		return buffer;
+	}
+
+	/** See leaseChars() */
+	public synchronized double[] leaseDoubles(int length, Subsystem owner)
+	{
+		double[] buffer = (double[])take(double[].class, length, 1);
+		if(buffer == null)
+			buffer = new double[length];
+		count(owner, getByteCount(buffer));
+		return buffer;
+	}
+
+
+	/** Leases an ARGB_8888 bitmap. Its pixels are undefined.
+	 *
+	 * @param width  - width of the bitmap
+	 * @param height - height of the bitmap
+	 * @param owner  - the subsystem the bitmap is counted to
+	 * @return - the bitmap (return it by release() when it is not used anymore)
+	 */
+	public synchronized Bitmap leaseBitmap(int width, int height, Subsystem owner)
+	{
+		Bitmap bitmap = (Bitmap)take(Bitmap.class, width, height);
+		if(bitmap == null)
+			bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		count(owner, getByteCount(bitmap));
+		return bitmap;
+	}
+
+
+	/** Returns a leased buffer. It must not be used afterwards.
+	 *
+	 * @param buffer - the buffer (an array or a bitmap leased from this pool; null is ignored)
+	 * @param owner  - the subsystem the buffer was leased to
+	 */
+	public synchronized void release(Object buffer, Subsystem owner)
+	{
+		if(buffer == null)
+			return;
+
+		long lBytes = getByteCount(buffer);
+		count(owner, -lBytes);
+
+		if(belongsToArea(buffer) == false)
+		{
+			recycle(buffer); // Left from a drawing area of another size - it would not be taken anymore
+			return;
+		}
+
+		free.addLast(buffer);
+		lFreeBytes += lBytes;
+		drop(maxFreeBytes, true);
+	}
+
+
+	/** Sets the size of the drawing area. The free buffers of other sizes are dropped, and so are the 
+	 *  buffers of other sizes released later.
+	 *
+	 * @param width  - width of the drawing area
+	 * @param height - height of the drawing area
+	 */
+	public synchronized void setDrawingArea(int width, int height)
+	{
+		iAreaWidth  = width;
+		iAreaHeight = height;
+
+		ListIterator<Object> it = free.listIterator();
+		while(it.hasNext())
+		{
+			Object buffer = it.next();
+			if(belongsToArea(buffer) == false)
+			{
+				it.remove();
+				lFreeBytes -= getByteCount(buffer);
+				recycle(buffer);
+			}
+		}
+	}
+
+
+	/** Drops the least recently released free buffers, until the free buffers take at most
+	 *  the supplied memory. Called when the system runs low on memory.
+	 *
+	 * @param maxBytes - the most memory the free buffers may take afterwards (0 drops all of them)
+	 */
+	public synchronized void trimTo(long maxBytes)
+	{
+		drop(maxBytes, false);
+	}
+
+
+	/** Returns the bytes of the buffers currently leased to a subsystem
+	 */
+	public synchronized long getLeasedBytes(Subsystem owner)
+	{
+		return leasedBytes[owner.ordinal()];
+	}
+
+
+	/** Returns the bytes of the free buffers kept by the pool
+	 */
+	public synchronized long getFreeBytes()
+	{
+		return lFreeBytes;
+	}
+
+
+	/** Returns the most bytes the buffers (leased and free) took at once
+	 */
+	public synchronized long getPeakBytes()
+	{
+		return lPeakBytes;
+	}
+
+
+	/** Describes the memory taken by the buffers (for the log)
+	 */
+	@Override
+	public synchronized String toString()
+	{
+		StringBuilder text = new StringBuilder("BufferPool"); //$NON-NLS-1$
+		for(Subsystem owner : Subsystem.values())
+		{
+			text.append(' ').append(owner).append('=').append(leasedBytes[owner.ordinal()]/1024).append("KB"); //$NON-NLS-1$
+		}
+		text.append(" free=").append(lFreeBytes/1024).append("KB peak=").append(lPeakBytes/1024).append("KB"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		return text.toString();
+	}
+
+
+	/** Takes a free buffer of the size class out of the pool
+	 *
+	 * @return - the buffer or null if there is none
+	 */
+	private Object take(Class<?> type, int width, int height)
+	{
+		// The most recently released buffers are the most likely to be needed again
+		ListIterator<Object> it = free.listIterator(free.size());
+		while(it.hasPrevious())
+		{
+			Object buffer = it.previous();
+			if(buffer.getClass() != type)
+				continue;
+
+			boolean bFits = (buffer instanceof Bitmap) ?
+							((Bitmap)buffer).getWidth() == width && ((Bitmap)buffer).getHeight() == height :
+							getLength(buffer) == width;
+			if(bFits)
+			{
+				it.remove();
+				lFreeBytes -= getByteCount(buffer);
+				return buffer;
+			}
+		}
+		return null;
+	}
+
+
+	/** Drops the least recently released free buffers, until the free buffers take at most maxBytes
+	 *
+	 * @param bKeepOne - true to keep the most recently released buffer of the drawing area which is bigger than maxBytes anyway
+	 */
+	private void drop(long maxBytes, boolean bKeepOne)
+	{
+		Object kept = null;
+		if(bKeepOne)
+		{
+			ListIterator<Object> it = free.listIterator(free.size());
+			while(kept == null && it.hasPrevious())
+			{
+				Object buffer = it.previous();
+				if(iAreaWidth > 0 && belongsToArea(buffer) && getByteCount(buffer) > maxBytes)
+					kept = buffer;
+			}
+		}
+
+		long lKeptBytes = (kept != null) ? getByteCount(kept) : 0;
+		ListIterator<Object> it = free.listIterator();
+		while(lFreeBytes - lKeptBytes > maxBytes && it.hasNext())
+		{
+			Object buffer = it.next();
+			if(buffer == kept)
+				continue;
+			it.remove();
+			lFreeBytes -= getByteCount(buffer);
+			recycle(buffer);
+		}
+	}
+
+
+	/** Tells whether the buffer is of a size class used by the drawing area (any buffer before its size is known).
+	 *  The arrays have a multiple of the pixels of the area (e.g. two coordinates for each pixel).
+	 */
+	private boolean belongsToArea(Object buffer)
+	{
+		if(iAreaWidth <= 0 || iAreaHeight <= 0)
+			return true;
+		if(buffer instanceof Bitmap)
+			return ((Bitmap)buffer).getWidth() == iAreaWidth && ((Bitmap)buffer).getHeight() == iAreaHeight;
+		int iLength = getLength(buffer);
+		return iLength > 0 && iLength % (iAreaWidth*iAreaHeight) == 0;
+	}
+
+
+	private static void recycle(Object buffer)
+	{
+		if(buffer instanceof Bitmap)
+			((Bitmap)buffer).recycle();
+	}
+
+
+	private void count(Subsystem owner, long lBytes)
+	{
+		leasedBytes[owner.ordinal()] += lBytes;
+
+		long lTotal = lFreeBytes;
+		for(int i=0; i<leasedBytes.length; i++)
+		{
+			lTotal += leasedBytes[i];
+		}
+		lPeakBytes = Math.max(lPeakBytes, lTotal);
+	}
+
+
+	private static int getLength(Object buffer)
+	{
+		if(buffer instanceof char[])
+			return ((char[])buffer).length;
+		if(buffer instanceof int[])
+			return ((int[])buffer).length;
+		return ((double[])buffer).length;
+	}
+
+
+	private static long getByteCount(Object buffer)
+	{
+		if(buffer instanceof Bitmap)
+			return 4L*((Bitmap)buffer).getWidth()*((Bitmap)buffer).getHeight();
+		if(buffer instanceof char[])
+			return 2L*((char[])buffer).length;
+		if(buffer instanceof int[])
+			return 4L*((int[])buffer).length;
+		return 8L*((double[])buffer).length;
+	}
+}
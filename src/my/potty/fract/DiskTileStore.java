@@ -0,0 +1,374 @@
+package my.potty.fract;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** Keeps the tiles of TileCache in files, so that they survive the end of the process.
+ *
+ *  Each tile is one file named by its key, holding a small header and the compressed values
+ *  of its points. The files are read through memory mapping. A file is written under a
+ *  temporary name and renamed when it is complete, so a process killed while writing leaves
+ *  only a temporary file behind, which is deleted the next time the store is opened. The files
+ *  are not synced (that would be too slow for hundreds of tiles) - a file damaged by a power loss
+ *  is recognized by its header and its compressed length and deleted when it is read.
+ *
+ *  The total size of the files is bounded. When it is exceeded, the least recently used files
+ *  are deleted - the last modification time of a file is updated each time it is read, so the
+ *  order is kept between the runs of the application.
+ *
+ *  The tiles are read by the drawing thread, but it only hands over a copy of each written tile -
+ *  the compressing, writing and updating of the modification times is done by this thread with
+ *  the lowest priority, so the drawing thread doesn't wait for the disk after each render job.
+ *  A tile waiting to be written is read from its copy.
+ *
+ * @author Pottry
+ *
+ */
+class DiskTileStore extends Thread
+{
+	private static final int 	MAGIC 	 	= 0x46544C31; // "FTL1" - identifies the format of the files
+	private static final int 	HEADER_SIZE = 17; 		  // magic, width, height, layout (1 byte), compressed length
+	private static final String SUFFIX 		= ".tile"; 	  //$NON-NLS-1$
+	private static final String TEMP_SUFFIX = ".tmp"; 	  //$NON-NLS-1$
+
+	private final File directory;
+
+	// Guarded by this
+	private long 	   maxBytes;
+	private long 	   lBytes = 0;
+	private LinkedHashMap<String, Long> files; // Size of each stored file, the least recently used first (null until opened)
+	private final LinkedHashMap<String, IterationBuffer> pendingTiles = new LinkedHashMap<String, IterationBuffer>(); // Copies of the tiles waiting to be written
+	private final LinkedHashSet<String> pendingTouches = new LinkedHashSet<String>(); // Files read since their modification time was updated
+	private String 			writingName; // The tile being written (null if none) - it is neither pending nor listed in files yet
+	private IterationBuffer writingTile;
+	private boolean bTrim 	   = false; // The size limit was lowered
+	private boolean bFinishing = false; // The thread ends when there is nothing more to write
+
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED); // Used only by this thread
+	private final Inflater inflater = new Inflater(); 					 // Used only by the reading thread
+
+
+
+	/** Creates a store and starts the thread writing the tiles. The directory is not touched until
+	 *  the first tile is read or written.
+	 *
+	 * @param directory - where the tiles are stored (created if needed)
+	 * @param maxBytes  - the most space the files of the tiles may take
+	 */
+	DiskTileStore(File directory, long maxBytes)
+	{
+		this.directory = directory;
+		this.maxBytes  = maxBytes;
+		this.setPriority(MIN_PRIORITY);
+		this.setDaemon(true);
+		this.start();
+	}
+
+
+	/** Changes the most space the files of the tiles may take. When it is lowered, the least recently
+	 *  used files are deleted by the writing thread. Can be called from any thread.
+	 *
+	 * @param lMaxBytes - the size limit (in bytes)
+	 */
+	synchronized void setMaxBytes(long lMaxBytes)
+	{
+		bTrim 	 = bTrim || lMaxBytes < maxBytes;
+		maxBytes = lMaxBytes;
+		notifyAll();
+	}
+
+
+	/** Reads a tile
+	 *
+	 * @param name 			- name of the tile
+	 * @param maxIterations - the iterations limit of the tile
+	 * @return - the tile or null if it is not stored (or can't be read)
+	 */
+	IterationBuffer read(String name, int maxIterations)
+	{
+		synchronized(this)
+		{
+			IterationBuffer queued = name.equals(writingName) ? writingTile : pendingTiles.get(name);
+			if(queued != null)
+				return new IterationBuffer(queued);
+
+			open();
+			if(files.get(name) == null) // Also makes the file the most recently used
+				return null;
+		}
+
+		File 			 file = new File(directory, name + SUFFIX);
+		RandomAccessFile raf  = null;
+		try
+		{
+			raf = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+			MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+
+			int width 	   = 0, height = 0, length = -1;
+			boolean bWide  = false;
+			if(mapped.capacity() >= HEADER_SIZE && mapped.getInt() == MAGIC)
+			{
+				width  = mapped.getInt();
+				height = mapped.getInt();
+				bWide  = mapped.get() != 0;
+				length = mapped.getInt();
+			}
+
+			IterationBuffer tile = (width > 0 && height > 0) ? new IterationBuffer(width, height, maxIterations) : null;
+			if(tile == null || (tile.wide != null) != bWide || length != mapped.remaining())
+				throw new IOException("Damaged tile " + name); //$NON-NLS-1$
+
+			byte[] compressed = new byte[length];
+			mapped.get(compressed);
+			if(tile.decompress(compressed, inflater) == false)
+				throw new IOException("Damaged tile " + name); //$NON-NLS-1$
+
+			synchronized(this)
+			{
+				pendingTouches.add(name);
+				notifyAll();
+			}
+			return tile;
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			close(raf);
+		}
+
+		// The file is damaged - don't try it again
+		synchronized(this)
+		{
+			delete(name);
+		}
+		return null;
+	}
+
+
+	/** Hands a tile over to be written, replacing the stored one with the same name. 
+	 *  Never waits for the disk.
+	 *
+	 * @param name - name of the tile
+	 * @param tile - the tile (copied)
+	 */
+	synchronized void write(String name, IterationBuffer tile)
+	{
+		IterationBuffer queued = pendingTiles.get(name);
+		if(queued != null && queued.width == tile.width && queued.height == tile.height && (queued.wide != null) == (tile.wide != null))
+			queued.copy(tile, 0, 0, 0, 0, tile.width, tile.height);
+		else
+			pendingTiles.put(name, new IterationBuffer(tile));
+		notifyAll();
+	}
+
+
+	/** Ends the thread once the tiles waiting to be written (if any) are written.
+	 *  No tiles should be written afterwards.
+	 */
+	synchronized void finish()
+	{
+		bFinishing = true;
+		notifyAll();
+	}
+
+
+	@Override
+	public void run()
+	{
+		while(true)
+		{
+			String 			name  = null;
+			IterationBuffer tile  = null;
+			boolean 		bTouch = false;
+
+			synchronized(this)
+			{
+				while(pendingTiles.isEmpty() && pendingTouches.isEmpty() && bTrim == false)
+				{
+					if(bFinishing)
+						return;
+					try{wait();}catch(InterruptedException e){e.printStackTrace();}
+				}
+
+				if(pendingTiles.isEmpty() == false)
+				{
+					Iterator<Map.Entry<String, IterationBuffer>> it = pendingTiles.entrySet().iterator();
+					Map.Entry<String, IterationBuffer> entry = it.next();
+					name = entry.getKey();
+					tile = entry.getValue();
+					it.remove();
+					writingName = name;
+					writingTile = tile;
+					pendingTouches.remove(name); // Writing updates the modification time as well
+				}
+				else if(pendingTouches.isEmpty() == false)
+				{
+					Iterator<String> it = pendingTouches.iterator();
+					name   = it.next();
+					bTouch = true;
+					it.remove();
+				}
+				else
+				{
+					open();
+					trim(null);
+					bTrim = false;
+				}
+			}
+
+			if(tile != null)
+			{
+				store(name, tile);
+				synchronized(this)
+				{
+					writingName = null;
+					writingTile = null;
+				}
+			}
+			else if(bTouch)
+				new File(directory, name + SUFFIX).setLastModified(System.currentTimeMillis());
+		}
+	}
+
+
+	/** Writes a tile, replacing the stored one with the same name. Called only by this thread.
+	 */
+	private void store(String name, IterationBuffer tile)
+	{
+		synchronized(this)
+		{
+			open();
+		}
+
+		byte[] compressed = tile.compress(deflater);
+		int    length 	  = compressed.length;
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(tile.width).putInt(tile.height).put((byte)(tile.wide != null ? 1 : 0)).putInt(length);
+
+		File 			 temp = new File(directory, name + TEMP_SUFFIX);
+		FileOutputStream out  = null;
+		try
+		{
+			out = new FileOutputStream(temp);
+			out.write(header.array());
+			out.write(compressed, 0, length);
+			out.close();
+			out = null;
+
+			// The rename replaces the old file at once, so there is always a complete file or none
+			synchronized(this)
+			{
+				Long oldSize = files.remove(name);
+				if(oldSize != null)
+					lBytes -= oldSize.longValue();
+				if(temp.renameTo(new File(directory, name + SUFFIX)) == false)
+					throw new IOException("Can't rename " + temp); //$NON-NLS-1$
+
+				files.put(name, Long.valueOf(HEADER_SIZE + length));
+				lBytes += HEADER_SIZE + length;
+				trim(name);
+			}
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+			close(out);
+			temp.delete();
+		}
+	}
+
+
+	/** Deletes the least recently used files until the files fit into the size limit. Called with the monitor.
+	 *
+	 * @param keep - name of the file which must not be deleted (null - any file can be deleted)
+	 */
+	private void trim(String keep)
+	{
+		Iterator<Map.Entry<String, Long>> it = files.entrySet().iterator();
+		while(lBytes > maxBytes && it.hasNext())
+		{
+			Map.Entry<String, Long> entry = it.next();
+			if(entry.getKey().equals(keep))
+				continue;
+			lBytes -= entry.getValue().longValue();
+			new File(directory, entry.getKey() + SUFFIX).delete();
+			it.remove();
+		}
+	}
+
+
+	/** Lists the stored files (once). Temporary files left by a killed process are deleted. Called with the monitor.
+	 */
+	private void open()
+	{
+		if(files != null)
+			return;
+
+		files = new LinkedHashMap<String, Long>(256, 0.75f, true);
+		directory.mkdirs();
+
+		File[] list = directory.listFiles();
+		if(list == null)
+			return;
+
+		// The least recently used first
+		Arrays.sort(list, new Comparator<File>()
+		{
+			@Override
+			public int compare(File a, File b)
+			{
+				long lA = a.lastModified(), lB = b.lastModified();
+				return lA < lB ? -1 : (lA == lB ? 0 : 1);
+			}
+		});
+
+		for(File file : list)
+		{
+			String fileName = file.getName();
+			if(fileName.endsWith(SUFFIX))
+			{
+				files.put(fileName.substring(0, fileName.length() - SUFFIX.length()), Long.valueOf(file.length()));
+				lBytes += file.length();
+			}
+			else if(fileName.endsWith(TEMP_SUFFIX))
+			{
+				file.delete();
+			}
+		}
+	}
+
+
+	private void delete(String name)
+	{
+		Long size = files.remove(name);
+		if(size != null)
+			lBytes -= size.longValue();
+		new File(directory, name + SUFFIX).delete();
+	}
+
+
+	private static void close(Closeable closeable)
+	{
+		if(closeable == null)
+			return;
+		try{closeable.close();}catch(IOException e){e.printStackTrace();}
+	}
+}
@@ -0,0 +1,95 @@
+package my.potty.fract;
+
+/** Decides when the display thread should draw a frame.
+ *
+ *  The display thread does not poll. It sleeps until somebody requests a frame: the fractal
+ *  drawer when it has published new data, the touch handlers while a gesture is in progress,
+ *  or the UI when a setting affecting the picture changes. Several requests made before the
+ *  display thread wakes up result in a single frame, so a burst of touch events never queues
+ *  up more frames than the display can show.
+ *
+ *  The scheduler also counts the frames, so it can be checked that no frames are drawn
+ *  when nothing has changed.
+ *
+ * @author Pottry
+ *
+ */
+class DisplayScheduler
+{
+	private boolean bRunning 		= false;
+	private boolean bFrameRequested = false;
+
+	private long lFramesCount;	   // Number of frames for which the display thread woke up
+	private long lIdleFramesCount; // Number of frames in which nothing was drawn onto the display
+
+
+
+	/** Allows the display thread to run. The first frame is requested immediately.
+	 */
+	synchronized void start()
+	{
+		bRunning 		= true;
+		bFrameRequested = true;
+	}
+
+
+	/** Makes awaitFrame() return false, so the display thread can finish
+	 */
+	synchronized void stop()
+	{
+		bRunning = false;
+		notifyAll();
+	}
+
+
+	/** Asks the display thread to draw a frame. Can be called from any thread.
+	 */
+	synchronized void requestFrame()
+	{
+		bFrameRequested = true;
+		notifyAll();
+	}
+
+
+	/** Blocks the display thread until a frame is requested.
+	 *
+	 * @return - true if a frame should be drawn; false if the display thread should finish
+	 */
+	synchronized boolean awaitFrame()
+	{
+		while(bRunning && bFrameRequested == false)
+		{
+			try{wait();}catch(InterruptedException e){e.printStackTrace();}
+		}
+		bFrameRequested = false;
+		return bRunning;
+	}
+
+
+	/** Called by the display thread after handling a requested frame
+	 *
+	 * @param bDrawn - true if something was drawn onto the display
+	 */
+	synchronized void frameDone(boolean bDrawn)
+	{
+		lFramesCount++;
+		if(bDrawn == false)
+			lIdleFramesCount++;
+	}
+
+
+	/** Returns the number of frames for which the display thread woke up
+	 */
+	synchronized long getFramesCount()
+	{
+		return lFramesCount;
+	}
+
+
+	/** Returns the number of frames in which the display thread woke up, but had nothing to draw
+	 */
+	synchronized long getIdleFramesCount()
+	{
+		return lIdleFramesCount;
+	}
+}
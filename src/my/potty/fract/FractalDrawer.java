@@ -1,6 +1,12 @@
 package my.potty.fract;
 
-import android.graphics.Canvas;
+import java.io.File;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+import my.potty.fract.FractalSettings.ColorMode;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
 
 
 /**
@@ -9,491 +15,1836 @@ import android.graphics.Canvas;
  *
  * Class responsible for drawing a fractal onto a bitmap. 
  * 
- * Drawing is done using three buffers:
- * 1) iDrawingBuffer 	      - Each value in this buffer tells us how many number of iterations are done on each point of the complex plain.
- *					   			This buffer maybe incomplete if the thread is interrupted.	   
- * 2) iCompletedDrawingBuffer - Same as iDrawingBuffer, with the difference that this buffer holds valid values and drawing onto it can't be interrupted.
- * 								An intermediate buffer is used so that we can the coloring of each pixel of the complex plain.
- * 3) exportBitmap 			  - A bitmap which the user of this class is seeing
+ * Drawing is done using the following buffers:
+ * 1) ongoingFractalImage - Each value in this buffer tells us how many number of iterations are done on each point of the complex plain.
+ *					   		This buffer is used only by the drawing thread. It uses 16 bits per point unless the
+ *							iterations limit is too high for that (see IterationBuffer).
+ * 2) frameExchange		  - Three frames through which the state of ongoingFractalImage is published to the display thread.
+ * 							The changed regions are published at the end of each stage and periodically during a stage,
+ * 							so the calculation and the coloring/drawing never wait for each other.
+ * 
+ * One drawer lives as long as the application. When the drawing area is resized, the drawer keeps 
+ * its threads, buffers and caches and continues with the same window (see resize()).
+ * 
+ * When the first stage would take too long (judged by the throughput of the previous passes), the first 
+ * frame is calculated at a lower resolution and upscaled, so something is shown within a time budget 
+ * (see setFirstFrameBudget()).
  */
 public class FractalDrawer extends Thread
 {	
 	public static final int CALCULATION_STAGE_FINISHED = 5;
 	
+	/** The order in which the points of each pass are calculated */
+	public static enum TraversalOrder
+	{
+		COST,  // The most expensive columns first, so the workers finish the pass together
+		FOCUS  // The rings around the focus (the last touch or the center of the screen) from the nearest outwards, 
+			   // the most expensive chunks of each ring first
+	}
+	
+	/** Listener notified when there is something new to be drawn or the state of the calculation changes
+	 */
+	public interface OnChangeListener
+	{
+		/** Called by the drawing thread after new data has been published and by the thread 
+		 *  which requests a new render job. Must return quickly.
+		 * 
+		 * @param drawer - the drawer which has changed
+		 */
+		public void onDrawerChanged(FractalDrawer drawer);
+		
+		/** Called by the drawing thread when it has changed the window of the settings to the window
+		 *  of the checkpoint saved before the application was stopped. 
+		 * 
+		 * @param drawer - the drawer which has changed the settings
+		 */
+		public void onSettingsRestored(FractalDrawer drawer);
+	}
+	
+	private static final long PUBLISH_INTERVAL = 40000000; // How often (in ns) the progress within a stage is published to the display thread
+	private static final int  PREFETCH_SCREENS 	= 3; // The prefetch cache holds images with the total size of this many windows
+	private static final int  PREFETCH_STRIP 	= 4; // The strips prefetched along the edges are 1/PREFETCH_STRIP of the window size wide
+	private static final int  TILE_CACHE_BYTES	= 8*1024*1024; // Memory (in bytes) for the tiles of the visited places
+	private static final long DISK_CACHE_BYTES	= 32*1024*1024; // Default disk space (in bytes) for the tiles kept between the runs
+	private static final String TILES_DIRECTORY = "tiles"; //$NON-NLS-1$
+	private static final String CHECKPOINT_DIRECTORY = "checkpoint"; //$NON-NLS-1$
+	private static final int  VIEWPORT_HISTORY_SIZE = 50; // How many windows the user can step back through
+	private static final int  FRAME_HISTORY_SIZE	= 8;  // How many images of the last visited windows are kept compressed
+	private static final int  FRAME_HISTORY_BYTES	= 4*1024*1024; // The most memory (in bytes) the compressed images may take
+	private static final long CHECKPOINT_INTERVAL	= 2000000000L; // How often (in ns) the progress of the render job is saved
+	private static final int  HISTOGRAM_GROWTH		= 4; // Within a stage the colors of histogram coloring change when the number of points grows by 1/HISTOGRAM_GROWTH
+	private static final int  CHUNK_COLUMNS			= 4; // Average number of columns of a pass a worker takes at once
+	private static final int  POINT_OVERHEAD		= 10; // Cost of a point besides its iterations (in iterations), for the estimated cost of the chunks
+	private static final int  ORDER_LEVELS			= 1 << 20; // Number of distinct priorities of the chunks (the passes have far fewer chunks)
+	private static final int  BAND_ROWS				= 16; // Number of rows of a pass in a cell - the chunks are one cell high in the FOCUS order and the finished cells are saved
+	private static final int  FOCUS_RING			= 64; // Width (in pixels) of the rings around the focus in the FOCUS order
+	private static final int  VALIDATION_SAMPLES	= 64; // How many points of the image resumed from the checkpoint are calculated again to validate it
+	private static final long DUTY_PERIOD			= 20000000; // How long (in ns) a worker calculates before it sleeps (if the duty cycle is below 1)
+	private static final long FIRST_FRAME_BUDGET	= 100000000; // Default time (in ns) in which the first complete frame of a render job should be calculated
+	private static final int  MAX_COARSE_STEP		= 32; // The lowest resolution of the first frame - one point for MAX_COARSE_STEP x MAX_COARSE_STEP pixels
+	private static final int  PROBE_POINTS			= 64; // Number of points timed when the throughput was not measured yet
+	
+	/** The points inspected on each drawing stage. Each pass is described by {startX, startY, step} */
+	private static final int[][][] STAGE_PASSES = 
+	{
+		{{0, 0, 4}}, 			 // Stage 0
+		{{2, 2, 4}}, 			 // Stage 1
+		{{0, 2, 4}, {2, 0, 4}},  // Stage 2
+		{{1, 1, 2}}, 			 // Stage 3
+		{{0, 1, 2}, {1, 0, 2}}   // Stage 4
+	};
+	
 	private	int iDrawingStage = 0;  // The whole picture is drawn on 5 stages, controlled by this constant
-	private boolean doInit = true;  // The the object must go through initialization
+	
+	// Each request for restarting the drawing starts a new render job with a new generation number.
+	// The thread checks the requested generation before each point, so a restart is noticed almost immediately.
+	private volatile int iRequestedGeneration = 0; // Generation of the last requested render job (incremented by resetProcessing())
+	private int          iCurrentGeneration   = 0; // Generation of the render job the thread is currently working on
+	private boolean      bRequestedAntialiasing = false; // Anti aliasing setting of the last requested render job
+	private long         lRestartRequestTime;   // System.nanoTime() of the last restart request
+	private long         lLastRestartLatency;   // How long (in ns) it took from the last restart request until the first frame of the new job was shown
+	private long         lJobRequestTime = 0;   // lRestartRequestTime of the current job, until its first frame is published (used only by the drawing thread)
 	
 	private FractalCalculator fractalCalculator; // For inspecting points from the 2d plane for fractal property
-	private	FractalSettings   fractalSettings; 	     // The fractal settings currently used by the Thread for calculating fractal points
+	private	FractalSettings   fractalSettings; 	     // The settings from which the snapshot for each render job is taken
+	private FractalSnapshot   requestedSnapshot;     // Settings of the last requested render job
+	private FractalSnapshot   snapshot;              // Settings currently used by the Thread for calculating fractal points
 	private ColorCreator      colorCreator;
-	private int[]			  ongoingFractalImage;   // Buffer which holds how many number of iterations were done for each point represented onto the display
-	private int[]			  completedFractalImage; // Holds the last valid representation of iDrawingBuffer
-	private int               iterationsCount; 
+	private IterationBuffer	  ongoingFractalImage;   // Buffer which holds how many number of iterations were done for each point represented onto the display
+	private IterationHistogram histogram;			 // Histogram of ongoingFractalImage, updated while the points are calculated
+	private FractalSnapshot   imageSnapshot;		 // Settings with which ongoingFractalImage is calculated
+	private IterationBuffer	  previousFractalImage;  // Image of the previous render job (the buffer is reused by the next job)
+	private IterationHistogram previewHistogram;	 // Histogram of the preview of the current job (null if there is no preview)
+	private IterationHistogram publishedHistogram;	 // Copy of the histogram published for the colors (changes only when the distribution may have changed)
+	private IterationHistogram publishedSource;		 // The histogram publishedHistogram was copied from
+	private int				  iPublishedStage;		 // Stage at which publishedHistogram was copied
+	private long[]			  knownPoints;			 // Bit for each point of ongoingFractalImage - set if the passes don't calculate it again (taken from the prefetch cache, calculated by the throughput probe, the low resolution frame or the resumed pass before the restart)
+	private int				  iLastReusedPoints;	 // Number of points the last render job took from the prefetch cache
+	
+	// When there is no render job, the thread calculates in advance the windows the user will probably visit next
+	private PrefetchCache	  prefetchCache;		 // Images of the visited and prefetched windows. Used only by the drawing thread.
+	private final TileCache	  tileCache;			 // Tiles of all calculated images, for previews after zooming. Used only by the drawing thread.
+	private final DiskTileStore diskTileStore;		 // Where tileCache keeps the tiles between the runs (null if they are not kept)
+	
+	// The user can step back to the previously visited windows. Their images are restored without calculating them again.
+	private final LinkedList<FractalSnapshot> viewportHistory = new LinkedList<FractalSnapshot>(); // Windows to step back to, the last one first (guarded by this)
+	private final FrameHistory frameHistory = new FrameHistory(FRAME_HISTORY_SIZE, FRAME_HISTORY_BYTES); // Used only by the drawing thread (compresses in its own thread)
+	private FractalSnapshot	  leftSnapshot;			 // Window of the job abandoned by the last startRenderJob() (null if it had nothing worth keeping)
+	private boolean			  bLeftAntialiasing;
+	private int				  iLeftStage;
+	
+	// The progress of the render job is saved periodically, so it can continue after the process is killed
+	private final RenderCheckpoint checkpoint;		 // Writes the checkpoints (null if they are not saved)
+	private final File		  checkpointDirectory;	 // Where the checkpoints are saved (null if they are not saved)
+	private RenderCheckpoint.Saved resumeFrom;		 // Checkpoint loaded at the start, used by the first render job with the same window
+	private long			  lJobId;				 // Identifies the render job in the checkpoints
+	private long			  lJobStartTime;		 // System.nanoTime() when the render job started - short jobs are not saved
+	private long			  lNextCheckpointTime;	 // System.nanoTime() when the next checkpoint should be saved
+	private volatile boolean  bCheckpointRequested;	 // Save the progress as soon as possible (the application is being paused)
+	private int				  iCheckpointDirtyLeft, iCheckpointDirtyRight; // Columns of ongoingFractalImage changed since the last checkpoint
+	private int				  iCurrentPass;			 // Pass of the current stage being calculated
+	private int				  iResumePass;			 // Pass at which the current stage starts
+	private long[]			  resumeDone;			 // Cells of the pass iResumePass finished before the restart (null if none)
+	private boolean			  bResumedImage = false; // ongoingFractalImage was taken from the checkpoint and was not validated yet
+	private final LinkedList<FractalSnapshot> prefetchQueue = new LinkedList<FractalSnapshot>(); // Windows to be prefetched (guarded by this)
+	private volatile int	  iPrefetchGeneration = 0; // Incremented when the prefetch queue is rebuilt - the window being prefetched is abandoned
+	private boolean			  bFlingHint = false;	 // A fling is in progress (guarded by this)
+	private float			  fFlingTranslateX, fFlingTranslateY; // Translation (in pixels) with which the fling is going to end
+	private final FrameExchange frameExchange = new FrameExchange(); // Passes the state of ongoingFractalImage to the display thread
+	private final Rect        dirtyRegion   = new Rect(); // Region of ongoingFractalImage changed since the last publish
+	private long              lNextPublishTime;             // System.nanoTime() when the progress within the current stage should be published
+	private volatile OnChangeListener changeListener;       // Notified about published data and restarts (may be null)
+	
+	// Held while the display thread swaps its frame and while another thread reads the frame of the display thread
+	private final Object      readFrameLock = new Object();
+	
+	// Used only by the display thread - describe what is already drawn onto the bitmap
+	private final Rect		  uncoloredRegion = new Rect(); // Region of the bitmap which has not been updated with the last frame yet
+	private int[]			  colorBuffer;					// Colors of the points of the bitmap
+	private Bitmap			  coloredBitmap;				// The bitmap to which the colors were copied
+	private ColorMode		  coloredColorMode;				// Color settings used for the bitmap
+	private int 			  iColoredPeriodicity;
+	private int 			  iColoredIterationsLimmit;
+	private IterationHistogram coloredHistogram;	// Histogram used for the colors (histogram coloring only)
+	private int 			  iColoredHistogramCount;
+	
+	// The points of each pass are calculated by several workers: the drawing thread (worker 0), which also
+	// publishes the progress and saves the checkpoints, and the helper threads. The workers take the columns 
+	// of the pass in chunks, so a fast worker takes more chunks than a slow one. The chunks have about the same 
+	// estimated cost and the most expensive ones are taken first, so the workers finish the pass together.
+	private final int		  maxWorkers = Math.max(1, Runtime.getRuntime().availableProcessors());
+	private final Worker[]	  helpers;				 // Worker threads 1 to maxWorkers-1
+	private PassTask		  passTask;				 // The pass being calculated (null between the passes, guarded by this)
+	private int				  iActiveWorkers = 1;	 // How many workers may calculate the current pass (guarded by this)
+	private volatile float	  fDutyCycle 	 = 1f;	 // Part of the time the workers calculate, the rest of it they sleep
+	private volatile RenderPolicy renderPolicy = new PowerBudgetPolicy(); // Decides the two above before each pass
+	private volatile PowerSignals powerSignals;		 // Power state the policy decides by (null - the workers run at full speed)
+	private volatile boolean  bPaused = false;		 // The application is paused - nothing is calculated (guarded by this when set)
+	private volatile boolean  bShutdown = false;	 // All threads of the drawer end (guarded by this when set)
+	private volatile TraversalOrder traversalOrder = TraversalOrder.COST; // Order of the chunks of each pass
+	private volatile float	  fFocusX = -1, fFocusY = -1; // The point (in pixels) the user is looking at (negative - the center)
+	private long[]			  costTable;			 // Estimated cost of the cells of the stage 0 grid, summed down each column of cells (null - nothing known)
+	private int				  iCostTableRows;		 // Number of rows of cells in costTable
+	private int				  iCostTableStage = -1;	 // Stage for which costTable was estimated (-1 - it must be estimated again)
+	
+	// When stage 0 would take longer than the budget, the first frame is calculated at a lower resolution and 
+	// each of its points fills its whole block of pixels. The stages then refine the image to the full resolution.
+	private volatile long	  lFirstFrameBudget = FIRST_FRAME_BUDGET; // 0 - the first frame is always stage 0
+	private double			  dSampleNanos = 0;		 // Measured time (in ns) of one tested sample (0 - nothing measured yet)
+	private int				  iMeasuredIterationsLimmit; // The iterations limit at which dSampleNanos was measured
+	
+	
+	private double  dThirdDistanceX; // The distance from the current point that we are inspecting to it's nearest neighbor, divided by 3.3 (Defined here for performance reasons)
+	private double  dThirdDistanceY;  
+	
+	
+	private boolean bAntialiasing = false;
+	//----------------------
+
+   
+	/** Starts a thread which is building the fractal image
+	 *  
+	 * @param settings		 	  - settings of the fractal
+	 * @param cacheDirectory 	  - directory where the calculated tiles are kept between the runs (null if they should not be kept)
+	 * @param filesDirectory 	  - directory where the progress of the render job is saved (null if it should not be saved).
+	 * 								If it holds a checkpoint for the size of the drawing area, the drawing thread changes the
+	 * 								settings to its window and the calculation continues where it stopped.
+	 */
+	public FractalDrawer(FractalSettings settings, File cacheDirectory, File filesDirectory)
+	{	
+		diskTileStore	  = (cacheDirectory != null) ? new DiskTileStore(new File(cacheDirectory, TILES_DIRECTORY), DISK_CACHE_BYTES) : null;
+		tileCache 		  = new TileCache(TILE_CACHE_BYTES, diskTileStore);
+		fractalSettings   = settings;
+		
+ 		// The checkpoint is read by the drawing thread - the caller must not wait for the disk
+		checkpointDirectory = (filesDirectory != null) ? new File(filesDirectory, CHECKPOINT_DIRECTORY) : null;
+		checkpoint 			= (filesDirectory != null) ? new RenderCheckpoint(checkpointDirectory) : null;
+		
+		requestedSnapshot = settings.getSnapshot();
+		snapshot          = requestedSnapshot;
+		BufferPool.getInstance().setDrawingArea(snapshot.width, snapshot.height);
+		bAntialiasing	  = bRequestedAntialiasing;
+	    colorCreator 	  = new ColorCreator();
+	    
+	    helpers = new Worker[maxWorkers-1];
+	    for(int i=0; i<helpers.length; i++)
+	    {
+	    	helpers[i] = new Worker(i+1);
+	    }
+	    
+		// Start the Thread and thus the drawing of the fractal
+		this.setPriority(NORM_PRIORITY);
+		this.start();
+	}
+	
+	
+	/** Loads the checkpoint saved before the application was stopped. If it was saved for the size of the
+	 *  drawing area and no other window was requested meanwhile, the settings are changed to its window,
+	 *  so the first render job continues where the calculation stopped.
+	 */
+	private void loadCheckpoint()
+	{
+		if(checkpointDirectory == null)
+			return;
+		
+		RenderCheckpoint.Saved saved = RenderCheckpoint.load(checkpointDirectory);
+		if(saved == null || isRestartRequested() || 
+		   saved.snapshot.width != snapshot.width || saved.snapshot.height != snapshot.height)
+			return;
+		if(saved.stage < 0 || saved.stage > CALCULATION_STAGE_FINISHED || 
+		   (saved.stage < CALCULATION_STAGE_FINISHED && (saved.pass < 0 || saved.pass >= STAGE_PASSES[saved.stage].length)))
+			return; // Damaged
+		
+		// Take the snapshot outside of the drawer monitor, so the two locks are never nested
+		fractalSettings.restore(saved.snapshot);
+		FractalSnapshot restored = fractalSettings.getSnapshot();
+		
+		synchronized(this)
+		{
+			// The user was faster - the request already holds the chosen window
+			if(isRestartRequested())
+				return;
+			
+			requestedSnapshot 	   = restored;
+			snapshot 			   = restored;
+			bRequestedAntialiasing = saved.antialiasing;
+			bAntialiasing 		   = saved.antialiasing;
+			resumeFrom 			   = saved;
+		}
+		
+		OnChangeListener listener = changeListener;
+		if(listener != null)
+			listener.onSettingsRestored(this);
+	}
+	
+	
+	/** Sets the listener notified when the drawer has new data or starts a new render job
+	 * 
+	 * @param listener - the listener or null
+	 */
+	public void setOnChangeListener(OnChangeListener listener)
+	{
+		changeListener = listener;
+	}
+	
+	
+	/** Checks if there is calculation  ongoing
+	 * 
+	 * @return true - the thread is currently processing fractal points
+	 */
+	public synchronized boolean isCurrentlyProcessing()
+	{
+		if(iDrawingStage < CALCULATION_STAGE_FINISHED || isRestartRequested())
+		{
+			return true;
+		}
+		return false;
+	}
+	
+	public synchronized boolean isAnyDataAvailable()
+	{
+		// If we are at calculation stage 0 - we don't have anything to draw yet
+		if(iDrawingStage==0)
+			return false;
+		
+		return true;
+	}
+	
+	
+	/** Returns how long it took the thread to abandon its previous work, prepare the last requested
+	 *  render job and publish its first frame to be shown (the preview, the restored image or the
+	 *  first stage). The measurement includes the assembly of the preview from the caches.
+	 * 
+	 * @return - latency in nanoseconds between the last call to resetProcessing() and the first published frame of the new job
+	 */
+	public synchronized long getLastRestartLatency()
+	{
+		return lLastRestartLatency;
+	}
+	
+	
+	/** Returns how many points of the last render job were not calculated, because they were
+	 *  found in the prefetch cache.
+	 */
+	public synchronized int getLastReusedPoints()
+	{
+		return iLastReusedPoints;
+	}
+	
+	
+	/** Tells the drawer that a fling is in progress. The window in which the fling ends is 
+	 *  calculated in advance, before anything else.
+	 * 
+	 * @param translateX - the translation of the current window with which the fling ends (in pixels)
+	 * @param translateY - the translation of the current window with which the fling ends (in pixels)
+	 */
+	public synchronized void setFlingHint(float translateX, float translateY)
+	{
+		bFlingHint 		 = true;
+		fFlingTranslateX = translateX;
+		fFlingTranslateY = translateY;
+		buildPrefetchQueue();
+		notifyAll();
+	}
+	
+	
+	/**
+	 *  Point inspection is done here based on the supplied FractalSettings. 
+	 *  When all points have been inspected the thread calculates the windows in the prefetch queue
+	 *  and then goes to sleep waiting for a new render job.
+	 */
+	@Override
+	public void run()
+	{
+		// The first render job continues from the checkpoint (if any). Its image is shown right away, then checked.
+		loadCheckpoint();
+		init();
+		if(iDrawingStage > 0 || previewHistogram != null)
+			publishProgress();
+		validateResumedImage();
+		
+		while(true)
+		{
+			boolean 		bNewJob 	   = false;
+			boolean 		bSave 		   = false;
+			FractalSnapshot prefetchWindow = null;
+			
+			synchronized(this)
+			{
+				// Sleep until there is something to do. The condition is checked while holding 
+				// the monitor so a restart request can't be missed.
+				while(iCurrentGeneration == iRequestedGeneration && iDrawingStage >= CALCULATION_STAGE_FINISHED && bShutdown == false)
+				{
+					// The process may be killed while paused - save the finished job if it was too short to be saved
+					if(bCheckpointRequested)
+					{
+						bSave = iCheckpointDirtyLeft < iCheckpointDirtyRight;
+						if(bSave)
+							break;
+						bCheckpointRequested = false;
+					}
+					
+					// Use the idle time for the windows the user will probably visit next (unless the application is paused)
+					if(bPaused == false)
+					{
+						prefetchWindow = prefetchQueue.poll();
+						if(prefetchWindow != null)
+							break;
+					}
+					
+					try{wait();}catch(InterruptedException e){e.printStackTrace();}
+				}
+				
+				if(bShutdown)
+					break;
+				
+				if(iCurrentGeneration != iRequestedGeneration)
+				{
+					startRenderJob();
+					bNewJob = true;
+				}
+			}
+			
+			if(bSave)
+			{
+				saveCheckpoint(0, null);
+				continue;
+			}
+			
+			if(prefetchWindow != null)
+			{
+				prefetch(prefetchWindow);
+				continue;
+			}
+			
+			// Prepare the buffers and the preview of the new job. Done outside of the monitor, as assembling 
+			// the preview from the caches takes a while and the other threads must not wait for it.
+			if(bNewJob)
+				init();
+			
+			// Show the preview (or the restored image) of the new job right away
+			if(bNewJob && (previewHistogram != null || iDrawingStage > 0))
+				publishProgress();
+			
+			// Keep the unfinished image of the abandoned job (now in previousFractalImage), so the user can step 
+			// back to it. It is compressed in the background. When the user has already moved on again, the window 
+			// was only passed through - it is not kept.
+			if(bNewJob && leftSnapshot != null)
+			{
+				if(isRestartRequested() == false)
+					frameHistory.put(leftSnapshot, bLeftAntialiasing, iLeftStage, previousFractalImage);
+				leftSnapshot = null;
+			}
+			
+			fractalProcessing();
+		}
+		
+		// The last checkpoint offered and the last tiles are still written
+		if(checkpoint != null)
+			checkpoint.finish();
+		if(diskTileStore != null)
+			diskTileStore.finish();
+		frameHistory.finish();
+	}
+	
+	
+
+	/**Draws the current state of the fractal onto the bitmap. Only the points which have changed since 
+	 * the last call are colored and copied into the bitmap. Should be called only by the display thread. 
+	 * 
+	 * @param bitmap	- Drawing destination. Must have the size of the drawing area.
+	 * @param updated	- Returns the region of the bitmap which was updated (empty if nothing changed)
+	 * @param settings	- The current settings used for drawing.
+	 * @return - Calculation stages:
+	 * 			0 - Nothing has been drawn (calculation ongoing)
+	 *			1 - First stage has been calculated (or a preview made from the previous image) and drawn (calculation ongoing)
+	 *			...
+	 *			5 - Fractal has been fully drawn (calculation finished)
+	 */
+    public int drawFractal(Bitmap bitmap, Rect updated, FractalSettings settings)
+    {
+        IterationFrame  frame;
+        ColorMode		colorMode   = settings.getColorMode();
+        int 			periodicity = settings.getColorPeriodicity();
+        
+        updated.setEmpty();
+        
+        // Take the last published frame (if any). The drawing thread doesn't touch it until we take another one.
+        synchronized(readFrameLock)
+        {
+	        frame = frameExchange.acquire();
+	        if(frame != null)
+	        	uncoloredRegion.union(frame.changed);
+	        frame = frameExchange.getReadFrame();
+        }
+        	
+    	// Do not draw if nothing has been calculated or if we need to draw a new fractal 
+    	if(frame.snapshot == null || (frame.stage == 0 && frame.preview == false) || frame.generation != iRequestedGeneration)
+    		return 0;
+    	
+    	// Bitmap is not for this frame (the drawing area has been resized)
+    	if(bitmap.getWidth() != frame.snapshot.width || bitmap.getHeight() != frame.snapshot.height)
+    		return 0;
+    	
+    	// Recolor everything if the colors of the already drawn points are no longer valid
+    	if(bitmap 		  != coloredBitmap 	  ||
+    	   colorMode 	  != coloredColorMode ||
+    	   periodicity 	  != iColoredPeriodicity ||
+    	   frame.snapshot.iterationsLimmit != iColoredIterationsLimmit ||
+    	   (colorMode == ColorMode.HISTOGRAM && isHistogramChanged(frame.histogram)))
+    	{
+    		coloredBitmap 		  	 = bitmap;
+    		coloredColorMode 	  	 = colorMode;
+    		iColoredPeriodicity   	 = periodicity;
+    		iColoredIterationsLimmit = frame.snapshot.iterationsLimmit;
+    		coloredHistogram 		 = frame.histogram;
+    		iColoredHistogramCount   = frame.histogram.getCount();
+    		uncoloredRegion.set(0, 0, frame.snapshot.width, frame.snapshot.height);
+    	}
+    	
+    	// Nothing has changed since the last call
+    	if(uncoloredRegion.isEmpty())
+    		return Math.max(frame.stage, 1);
+    	
+    	if(colorBuffer == null || colorBuffer.length != frame.snapshot.width*frame.snapshot.height)
+    	{
+    		BufferPool pool = BufferPool.getInstance();
+    		pool.release(colorBuffer, BufferPool.Subsystem.DISPLAY);
+    		colorBuffer = pool.leaseInts(frame.snapshot.width*frame.snapshot.height, BufferPool.Subsystem.DISPLAY);
+    	}
+    	
+        colorCreator.getColorArray(frame.iterations,
+        						   colorBuffer,
+        						   uncoloredRegion,
+		                           frame.snapshot.iterationsLimmit, 
+		                           colorMode,
+		                           periodicity,
+		                           coloredHistogram);
+    
+        bitmap.setPixels(colorBuffer, 
+        				 uncoloredRegion.top*frame.snapshot.width + uncoloredRegion.left, // Offset into the array of colors for the first pixel
+        				 frame.snapshot.width,  // The number of of colors in the array between rows
+        				 uncoloredRegion.left, uncoloredRegion.top, // The X and Y coordinates of the first pixel
+        				 uncoloredRegion.width(), 
+        				 uncoloredRegion.height());
+        
+        updated.set(uncoloredRegion);
+        uncoloredRegion.setEmpty();
+    
+        return Math.max(frame.stage, 1); // Stage 0 is drawn only as a preview
+    }
+    
+    
+    /** Creates a new bitmap with the image last drawn by drawFractal(). Used for saving the image, 
+     *  so that no copy of the displayed image has to be kept all the time. Can be called from any thread.
+     * 
+     * @param settings - the current settings used for drawing
+     * @return - new bitmap or null if nothing has been drawn yet
+     */
+    public Bitmap createImage(FractalSettings settings)
+    {
+    	ColorMode colorMode   = settings.getColorMode();
+    	int 	  periodicity = settings.getColorPeriodicity();
+    	
+    	// The display thread can't take a new frame while we read its current one
+    	synchronized(readFrameLock)
+    	{
+    		IterationFrame frame = frameExchange.getReadFrame();
+    		if(frame.snapshot == null || frame.stage == 0)
+    			return null;
+    		
+    		int   width  = frame.snapshot.width;
+    		int   height = frame.snapshot.height;
+    		int[] colors = BufferPool.getInstance().leaseInts(width*height, BufferPool.Subsystem.DISPLAY);
+    		
+    		colorCreator.getColorArray(frame.iterations,
+    								   colors,
+    								   new Rect(0, 0, width, height),
+    								   frame.snapshot.iterationsLimmit,
+    								   colorMode,
+    								   periodicity,
+    								   frame.histogram);
+    		
+    		Bitmap image = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    		image.setPixels(colors, 0, width, 0, 0, width, height);
+    		BufferPool.getInstance().release(colors, BufferPool.Subsystem.DISPLAY);
+    		return image;
+    	}
+    }
+    
+    
+    /** Checks if the histogram has changed since the bitmap was colored. 
+     *  With histogram coloring each change of the histogram changes the colors of all points.
+     *  
+     * @param frameHistogram - histogram of the frame being drawn
+     * @return true - the histogram has changed
+     */
+    private boolean isHistogramChanged(IterationHistogram frameHistogram)
+    {
+    	return frameHistogram != coloredHistogram || frameHistogram.getCount() != iColoredHistogramCount;
+    }
+	
+
+    /**
+     * Start drawing the fractal from the beginning
+     */
+	public void resetProcessing()
+	{
+	    requestRenderJob(false, true);
+	}
+	
+	 /**
+     * Start drawing the fractal from the beginning
+     */
+	public void resetProcessingWithAntialiasing()
+	{
+	    requestRenderJob(true, true);
+	}
+	
+	
+	/** Continues with the same window in a drawing area of a new size (e.g. after the device was rotated).
+	 *  The center and the scale of the window are kept and its pixels stay on the same grid, so the points 
+	 *  calculated for the old size are reused.
+	 * 
+	 * @param width  - new width of the drawing area
+	 * @param height - new height of the drawing area
+	 */
+	public void resize(int width, int height)
+	{
+		fractalSettings.resize(width, height);
+		BufferPool.getInstance().setDrawingArea(width, height); // The buffers of the old size are not needed anymore
+		requestRenderJob(false, false);
+	}
+	
+	
+	/** Stops all threads of the drawer for good. Called when the application is destroyed.
+	 *  The progress saved by the last checkpoint is still written.
+	 */
+	public synchronized void shutdown()
+	{
+		bShutdown = true;
+		iRequestedGeneration++; // Abandon the current job
+		notifyAll();
+	}
+	
+	
+	/** Returns to the previously visited window. Its image is shown at once if it is still 
+	 *  kept and its calculation continues if it was not finished.
+	 * 
+	 * @return - false if there is no window to return to
+	 */
+	public boolean stepBack()
+	{
+		FractalSnapshot previous = null;
+		
+		synchronized(this)
+		{
+			while(previous == null && viewportHistory.isEmpty() == false)
+			{
+				previous = viewportHistory.removeLast();
+				
+				// Taken before the drawing area was resized
+				if(previous.width != fractalSettings.width || previous.height != fractalSettings.height)
+					previous = null;
+			}
+		}
+		
+		if(previous == null)
+			return false;
+		
+		fractalSettings.restore(previous);
+		requestRenderJob(false, false);
+		return true;
+	}
+	
+	
+	/** Requests a new render job using the current fractal settings. The thread abandons 
+	 *  the current job before inspecting its next point and starts drawing from the beginning.
+	 * 
+	 * @param antialiasing - if the new job should use anti aliasing
+	 * @param bRecordHistory- if the user should be able to step back to the window of the last requested job
+	 */
+	private void requestRenderJob(boolean antialiasing, boolean bRecordHistory)
+	{
+		// Take the snapshot before locking the drawer, so the two locks are never nested
+		FractalSnapshot newSnapshot = fractalSettings.getSnapshot();
+		
+		synchronized(this)
+		{
+			if(bRecordHistory && newSnapshot.isSameView(requestedSnapshot) == false)
+			{
+				viewportHistory.addLast(requestedSnapshot);
+				if(viewportHistory.size() > VIEWPORT_HISTORY_SIZE)
+					viewportHistory.removeFirst();
+			}
+			
+			requestedSnapshot = newSnapshot;
+			bRequestedAntialiasing = antialiasing;
+			bFlingHint 		  = false; // The fling has ended
+			prefetchQueue.clear();
+			lRestartRequestTime    = System.nanoTime();
+			iRequestedGeneration++; // Volatile write - publishes the snapshot to the drawing thread
+			
+			// If the thread is waiting, wake it up
+			notifyAll();
+		}
+		
+		notifyChanged();
+	}
+	
+	
+	/** Notifies the listener (if any) that something has changed
+	 */
+	private void notifyChanged()
+	{
+		OnChangeListener listener = changeListener;
+		if(listener != null)
+			listener.onDrawerChanged(this);
+	}
+	
+	
+	/** Checks if a render job different from the current one has been requested
+	 * 
+	 * @return true - the current job should be abandoned
+	 */
+	private boolean isRestartRequested()
+	{
+		return iCurrentGeneration != iRequestedGeneration;
+	}
+	
+	
+	/** Switches the thread to the last requested render job. Must be called while holding the monitor.
+	 *  The job is prepared by init() afterwards.
+	 */
+	private void startRenderJob()
+	{
+		// Finished images are kept when they are finished, images without a finished stage are not worth keeping
+		leftSnapshot = (iDrawingStage > 0 && iDrawingStage < CALCULATION_STAGE_FINISHED) ? snapshot : null;
+		bLeftAntialiasing = bAntialiasing;
+		iLeftStage 		  = iDrawingStage;
+		
+		iCurrentGeneration  = iRequestedGeneration;
+		snapshot            = requestedSnapshot;
+		bAntialiasing       = bRequestedAntialiasing;
+		lJobRequestTime 	= lRestartRequestTime; // The latency is known when the first frame is published
+		iDrawingStage 		= 0; // Start drawing the fractal from the beginning (unless init() restores its image)
+	}
+	
+	
+	
+	/** Draws the next stage of the fractal using the information supplied by FractalSettings.
+	 *  Does nothing if a restart was requested in the meantime.
+	 */
+	private void fractalProcessing ()
+	{	
+		if(iDrawingStage >= CALCULATION_STAGE_FINISHED)
+			return; // Finished drawing
+		
+		// Implementation of the algorithm for drawing the fractal image. 
+		// It is made so that it looks like that the fractal is coming out gradually
+		int[][] passes = STAGE_PASSES[iDrawingStage];
+		lNextPublishTime = System.nanoTime() + PUBLISH_INTERVAL;
+		
+		// Show a complete frame within the budget, even if the first stage takes longer
+		if(iDrawingStage == 0 && iResumePass == 0 && resumeDone == null && processCoarseFrame() == false)
+			return; // The thread should restart drawing
+		
+		for(int i=iResumePass; i<passes.length; i++)
+		{
+			// A stage resumed from a checkpoint can start in the middle of a pass - its finished cells are known points
+			iCurrentPass = i;
+			if(processPass(passes[i][0], passes[i][1], passes[i][2], 1, (i == iResumePass) ? resumeDone : null) == false)
+				return; // The thread should restart drawing
+		}
+		iResumePass = 0;
+		resumeDone  = null;
+		
+		synchronized(this)
+		{
+			if(isRestartRequested())
+				return;
+			
+			// Go to the next stage when this function is called again
+			iDrawingStage++;
+		}
+		
+		// Save the result from the current drawing phase, unless the render job is short enough to be calculated again
+		publishProgress();
+		if(bCheckpointRequested || System.nanoTime() - lJobStartTime >= CHECKPOINT_INTERVAL)
+			saveCheckpoint(0, null);
+		
+		if(iDrawingStage == CALCULATION_STAGE_FINISHED)
+		{
+			// The user may come back to this window - keep its image
+			prefetchCache.put(snapshot, bAntialiasing, IterationBuffer.leaseCopy(ongoingFractalImage, BufferPool.Subsystem.CALCULATION));
+			tileCache.store(snapshot, ongoingFractalImage);
+			frameHistory.put(snapshot, bAntialiasing, iDrawingStage, ongoingFractalImage);
+			
+			synchronized(this)
+			{
+				buildPrefetchQueue();
+			}
+		}
+	}//fractalProcessing()
+	
+	
+	/** Calculates the first frame of the render job at a lower resolution, if stage 0 is estimated to take
+	 *  longer than the first frame budget. Each calculated point fills the not inspected pixels of its block.
+	 *  The points lie on the grid of stage 0, so they are not calculated again.
+	 * 
+	 * @return - false if the frame was abandoned because a restart was requested
+	 */
+	private boolean processCoarseFrame()
+	{
+		if(lFirstFrameBudget > 0 && dSampleNanos == 0 && probeThroughput() == false)
+			return false;
+		
+		int step = chooseCoarseStep();
+		if(step == 0)
+			return true;
+		
+		if(processPass(0, 0, step, step, null) == false)
+			return false;
+		iCostTableStage = -1; // Stage 0 is estimated from the new points
+		
+		int width  = snapshot.width;
+		int height = snapshot.height;
+		for(int x=0; x<width; x+=step)
+		{
+			for(int y=0; y<height; y+=step)
+			{
+				int index = x+y*width;
+				knownPoints[index >>> 6] |= 1L << index;
+			}
+		}
+		
+		// The frame is shown like a preview until the first stage is finished
+		if(previewHistogram == null)
+			previewHistogram = histogram;
+		publishProgress();
+		return true;
+	}
+	
+	
+	/** Chooses the resolution of the first frame from the throughput measured on the previous passes
+	 * 
+	 * @return - distance in pixels between the points of the first frame (0 - stage 0 fits into the budget)
+	 */
+	private int chooseCoarseStep()
+	{
+		long lBudget = lFirstFrameBudget;
+		if(lBudget <= 0)
+			return 0;
+		if(dSampleNanos == 0)
+			return 0; // The window is too small to measure anything
+		
+		// A higher iterations limit makes the points inside the set more expensive
+		double dPointNanos = dSampleNanos*(bAntialiasing ? 9 : 1)*Math.max(1.0, (double)snapshot.iterationsLimmit/iMeasuredIterationsLimmit);
+		int    step 	   = STAGE_PASSES[0][0][2];
+		while(step < MAX_COARSE_STEP && 
+			  (double)((snapshot.width+step-1)/step)*((snapshot.height+step-1)/step)*dPointNanos > lBudget)
+		{
+			step *= 2;
+		}
+		return (step == STAGE_PASSES[0][0][2]) ? 0 : step;
+	}
+	
+	
+	/** Measures the throughput on a few points of the stage 0 grid spread over the window, before anything
+	 *  else was measured. The points are calculated by the drawing thread alone, so the measured time is divided
+	 *  among the workers. Without anti aliasing the points are stored and counted as known points, so stage 0 
+	 *  doesn't calculate them again; with anti aliasing they only measure.
+	 * 
+	 * @return - false if the probe was abandoned because a restart was requested
+	 */
+	private boolean probeThroughput()
+	{
+		final int width  = snapshot.width;
+		final int height = snapshot.height;
+		final int grid 	 = STAGE_PASSES[0][0][2];
+		int   step 		 = grid*Math.max(1, (int)(Math.sqrt((double)width*height/PROBE_POINTS)/grid));
+		int   points 	 = 0;
+		long  lStart 	 = System.nanoTime();
+		
+		for(int x=0; x<width; x+=step)
+		{
+			for(int y=0; y<height; y+=step)
+			{
+				if(isRestartRequested())
+					return false;
+				
+				int iterations = fractalCalculator.testPoint(snapshot.getRealCoord_X(x, y), snapshot.getRealCoord_Y(x, y), snapshot.iterationsLimmit);
+				points++;
+				if(bAntialiasing)
+					continue;
+				
+				int index = x+y*width;
+				ongoingFractalImage.set(x, y, iterations);
+				knownPoints[index >>> 6] |= 1L << index;
+				histogram.add(0, iterations);
+			}
+		}
+		
+		int workers;
+		applyRenderPolicy();
+		synchronized(this)
+		{
+			workers = iActiveWorkers;
+		}
+		if(points >= PROBE_POINTS/2)
+		{
+			dSampleNanos 			  = (double)(System.nanoTime() - lStart)/((double)points*workers);
+			iMeasuredIterationsLimmit = snapshot.iterationsLimmit;
+		}
+		return true;
+	}
+	
+	
+	/** Updates the measured throughput with a finished pass
+	 * 
+	 * @param task 	   - the pass
+	 * @param points   - number of points calculated by the pass
+	 * @param lElapsed - time (in ns) the pass took, without the pauses
+	 */
+	private void measureThroughput(PassTask task, int points, long lElapsed)
+	{
+		if(points < 64)
+			return; // Too few to tell
+		
+		double dNanos = (double)lElapsed/((double)points*(task.antialiasing ? 9 : 1));
+		dSampleNanos  = (dSampleNanos == 0) ? dNanos : (dSampleNanos + dNanos)/2;
+		iMeasuredIterationsLimmit = task.settings.iterationsLimmit;
+	}
+	
+	
+	/** Fills the prefetch queue with the windows the user will probably visit next: the end of 
+	 *  the fling (if any), the strips along each edge and the center zoomed in 2 times. 
+	 *  Must be called while holding the monitor.
+	 */
+	private void buildPrefetchQueue()
+	{
+		prefetchQueue.clear();
+		iPrefetchGeneration++;
+		
+		// Nothing to prefetch until the current window is finished. Anti aliased windows are too expensive.
+		if(iCurrentGeneration != iRequestedGeneration || iDrawingStage < CALCULATION_STAGE_FINISHED || bAntialiasing)
+			return;
+		
+		int width  = snapshot.width;
+		int height = snapshot.height;
+		int strip  = Math.max(width, height)/PREFETCH_STRIP;
+		
+		// The translation moves the image, so the new window starts at the opposite offset
+		if(bFlingHint)
+			prefetchQueue.add(snapshot.getShifted(-Math.round(fFlingTranslateX), -Math.round(fFlingTranslateY), width, height));
+		
+		prefetchQueue.add(snapshot.getShifted(-strip, 0, 	  strip, height)); // Left
+		prefetchQueue.add(snapshot.getShifted(width,  0, 	  strip, height)); // Right
+		prefetchQueue.add(snapshot.getShifted(0, 	  -strip, width, strip));  // Top
+		prefetchQueue.add(snapshot.getShifted(0, 	  height, width, strip));  // Bottom
+		prefetchQueue.add(snapshot.getZoomed(2));
+	}
+	
+	
+	/** Calculates a window in advance and stores it in the prefetch cache. The thread runs with
+	 *  the lowest priority meanwhile and abandons the window as soon as a render job is requested.
+	 * 
+	 * @param window - the window to be calculated
+	 */
+	private void prefetch(FractalSnapshot window)
+	{
+		int 			iGeneration = iPrefetchGeneration;
+		int 			width 		= window.width;
+		int 			height 		= window.height;
+		IterationBuffer image 		= IterationBuffer.lease(width, height, window.iterationsLimmit, BufferPool.Subsystem.CALCULATION);
+		long[] 			known 		= new long[(width*height+63)/64];
+		
+		// Don't calculate again what is already known
+		if(prefetchCache.seed(window, false, image, known, null) == width*height)
+		{
+			image.release(BufferPool.Subsystem.CALCULATION);
+			return;
+		}
+		
+		FractalCalculator calculator = FractalCalculator.getInstance(window.fractalType);
+		calculator.setConstant(window.complexConstantRe, window.complexConstantIm);
+		
+		boolean bAbandoned = false;
+		this.setPriority(MIN_PRIORITY);
+		
+		for(int x=0; x<width && bAbandoned == false; x++)
+		{
+			for(int y=0; y<height; y++)
+			{
+				// Real work or a better guess has arrived
+				if(isRestartRequested() || iGeneration != iPrefetchGeneration)
+				{
+					bAbandoned = true;
+					break;
+				}
+				
+				// Calculate the window when the application is resumed
+				if(bPaused)
+				{
+					synchronized(this)
+					{
+						if(iGeneration == iPrefetchGeneration)
+							prefetchQueue.addFirst(window);
+					}
+					bAbandoned = true;
+					break;
+				}
+				
+				int index = y*width + x;
+				if((known[index >>> 6] & (1L << index)) == 0)
+				{
+					image.set(x, y, calculator.testPoint(window.getRealCoord_X(x, y), 
+														 window.getRealCoord_Y(x, y), 
+														 window.iterationsLimmit));
+				}
+			}
+		}
+		
+		this.setPriority(NORM_PRIORITY);
+		
+		if(bAbandoned == false)
+		{
+			prefetchCache.put(window, false, image);
+			tileCache.store(window, image);
+		}
+		else
+		{
+			image.release(BufferPool.Subsystem.CALCULATION);
+		}
+	}
+	
+	
+	/** Asks the drawing thread to save the progress of the render job as soon as possible
+	 *  (e.g. because the application is being paused). Can be called from any thread.
+	 */
+	public synchronized void checkpointSoon()
+	{
+		bCheckpointRequested = true;
+		notifyAll();
+	}
+	
+	
+	/** Hands the progress of the render job to the checkpoint writer. The calculation continues
+	 *  at the supplied pass of the stage iDrawingStage.
+	 * 
+	 * @param pass - pass of the stage at which the calculation continues
+	 * @param done - bit for each finished cell of the pass (null - nothing of it is finished)
+	 */
+	private void saveCheckpoint(int pass, long[] done)
+	{
+		bCheckpointRequested = false;
+		lNextCheckpointTime  = System.nanoTime() + CHECKPOINT_INTERVAL;
+		if(checkpoint == null)
+			return;
+		
+		checkpoint.offer(lJobId, snapshot, bAntialiasing, iDrawingStage, pass, done, 
+						 ongoingFractalImage, iCheckpointDirtyLeft, iCheckpointDirtyRight);
+		iCheckpointDirtyLeft  = Integer.MAX_VALUE;
+		iCheckpointDirtyRight = 0;
+	}
+	
+	
+	/** Publishes the changes done to ongoingFractalImage since the last publish to the display thread.
+	 */
+	private void publishProgress()
+	{
+		boolean bPreview = previewHistogram != null;
+		
+		// Until the first stage is finished almost all points come from the preview - color them by its histogram
+		IterationHistogram source = (bPreview && iDrawingStage == 0) ? previewHistogram : histogram;
+		
+		// Each new histogram recolors the whole image (histogram coloring), so it is copied only at the end of 
+		// a stage or when enough points were counted since the last copy to change the distribution
+		if(source != publishedSource || iDrawingStage != iPublishedStage || 
+		   source.getCount() - publishedHistogram.getCount() > publishedHistogram.getCount()/HISTOGRAM_GROWTH)
+		{
+			publishedHistogram = new IterationHistogram(source);
+			publishedSource    = source;
+			iPublishedStage    = iDrawingStage;
+		}
+		
+		frameExchange.publish(ongoingFractalImage, dirtyRegion, snapshot, iCurrentGeneration, iDrawingStage, 
+							  publishedHistogram, bPreview);
+		dirtyRegion.setEmpty();
+		lNextPublishTime = System.nanoTime() + PUBLISH_INTERVAL;
+		
+		// Without a preview frames are not drawn before the first stage is finished - no need to wake up the display
+		if(iDrawingStage > 0 || bPreview)
+		{
+			if(lJobRequestTime != 0)
+			{
+				synchronized(this)
+				{
+					lLastRestartLatency = System.nanoTime() - lJobRequestTime;
+				}
+				lJobRequestTime = 0;
+			}
+			notifyChanged();
+		}
+	}
+	
+	
+	
+	/** Pauses the calculation (e.g. because the application is paused). The workers stop after
+	 *  the chunk of columns they are calculating, nothing is prefetched. Can be called from any thread.
+	 */
+	public synchronized void pauseProcessing()
+	{
+		bPaused = true;
+	}
+	
+	
+	/** Continues the calculation paused by pauseProcessing(). Can be called from any thread.
+	 */
+	public synchronized void resumeProcessing()
+	{
+		bPaused = false;
+		notifyAll();
+	}
+	
+	
+	/** Sets the time in which the first complete frame of each render job should be calculated. When stage 0
+	 *  is estimated (from the throughput of the previous passes) to take longer, the first frame is calculated
+	 *  at a lower resolution and upscaled. The stages then refine it to the full resolution. Can be called from any thread.
+	 * 
+	 * @param lMilliseconds - the budget (0 - the first frame is always stage 0)
+	 */
+	public void setFirstFrameBudget(long lMilliseconds)
+	{
+		lFirstFrameBudget = lMilliseconds*1000000;
+	}
+	
+	
+	/** Sets the most disk space the tiles kept between the runs may take. When it is lowered, the least
+	 *  recently used tiles are deleted in the background. Can be called from any thread.
+	 * 
+	 * @param lBytes - the size limit (in bytes)
+	 */
+	public void setDiskCacheSize(long lBytes)
+	{
+		if(diskTileStore != null)
+			diskTileStore.setMaxBytes(lBytes);
+	}
+	
+	
+	/** Sets the order in which the points of each pass are calculated (TraversalOrder.COST by default). 
+	 *  Used from the next pass on. Can be called from any thread.
+	 * 
+	 * @param order - the order
+	 */
+	public void setTraversalOrder(TraversalOrder order)
+	{
+		traversalOrder = order;
+	}
+	
+	
+	/** Tells the drawer where the user is looking (e.g. where the last gesture was made). With the order
+	 *  TraversalOrder.FOCUS the points around it sharpen first. Can be called from any thread.
+	 * 
+	 * @param x - x-coordinate of the focus in pixels (negative - the center of the drawing area)
+	 * @param y - y-coordinate of the focus in pixels
+	 */
+	public void setFocus(float x, float y)
+	{
+		fFocusX = x;
+		fFocusY = y;
+	}
+	
+	
+	/** Sets the policy which decides how many workers calculate the fractal and how much of the time.
+	 *  It is asked before each pass of the calculation.
+	 * 
+	 * @param policy  - the policy
+	 * @param signals - the power state the policy decides by (null - the workers run at full speed)
+	 */
+	public void setRenderPolicy(RenderPolicy policy, PowerSignals signals)
+	{
+		renderPolicy = policy;
+		powerSignals = signals;
+	}
+	
+	
+	/** Asks the render policy how the next pass should be calculated
+	 */
+	private void applyRenderPolicy()
+	{
+		RenderPolicy policy  = renderPolicy;
+		PowerSignals signals = powerSignals;
+		int 		 workers = maxWorkers;
+		float 		 duty 	 = 1f;
+		
+		if(policy != null && signals != null)
+		{
+			workers = Math.max(1, Math.min(maxWorkers, policy.getWorkersCount(signals, maxWorkers)));
+			duty 	= Math.max(0.05f, Math.min(1f, policy.getDutyCycle(signals)));
+		}
+		
+		fDutyCycle = duty;
+		synchronized(this)
+		{
+			iActiveWorkers = workers;
+		}
+	}
+	
+	
+	
+	/** The points of one pass, divided into chunks for the workers. The columns are cut into groups and 
+	 *  each group into bands of rows (one band unless the points around the focus go first). The chunks
+	 *  are numbered by the columns first. The workers finish the chunks in any order, so the progress is
+	 *  kept as the finished cells (a column of the pass by BAND_ROWS rows). Holds its own copy of the settings of the render job, so the 
+	 *  workers don't read the fields of the drawer.
+	 */
+	private final class PassTask
+	{
+		final int 				 generation = iCurrentGeneration;
+		final FractalSnapshot 	 settings 	= snapshot;
+		final FractalCalculator  calculator = fractalCalculator;
+		final IterationBuffer 	 image 		= ongoingFractalImage;
+		final IterationHistogram counter 	= histogram;
+		final long[] 			 known 		= knownPoints;
+		final boolean 			 antialiasing = bAntialiasing;
+		final double 			 thirdDistanceX = dThirdDistanceX;
+		final double 			 thirdDistanceY = dThirdDistanceY;
+		final int 				 firstColumn, startY, step;
+		final int 				 block;		 // Each calculated point fills the not inspected pixels of its block x block pixels (1 - only itself)
+		final int 				 chunks;
+		final int[] 			 chunkStarts; // Index of the first column of each group of columns (one more for the end of the pass)
+		final int 				 bands;		  // Number of chunks in each group of columns
+		final int 				 bandRows;	  // Number of rows of a chunk
+		final int[] 			 order; 	  // The chunks in the order they are taken
+		long 					 lPausedTime = 0; // How long (in ns) the pass was paused - used only by the drawing thread
+		
+		// The progress - guarded by the drawer
+		int 			iNextChunk = 0;  // Number of chunks taken (the next one is order[iNextChunk])
+		int 			iRunning   = 0;  // Number of chunks being calculated
+		int 			iFinished  = 0;  // Number of finished chunks
+		final long[] 	doneCells; 		 // Bit for each finished cell (column*cellBands + band of rows)
+		final int 		cellBands; 		 // Number of cells in each column
+		int 			iDirtyLeft = Integer.MAX_VALUE, iDirtyRight = 0; // Columns finished since the drawing thread last looked
+		
+		PassTask(int firstColumn, int startY, int step, int block, long[] done)
+		{
+			this.firstColumn = firstColumn;
+			this.startY 	 = startY;
+			this.step 		 = step;
+			this.block 		 = block;
+			TraversalOrder traversal = traversalOrder;
+			int columns 	 = (firstColumn < settings.width) ? (settings.width - firstColumn + step - 1)/step : 0;
+			int rows 		 = (startY < settings.height) ? (settings.height - startY + step - 1)/step : 0;
+			int maxChunks 	 = (columns + CHUNK_COLUMNS - 1)/CHUNK_COLUMNS;
+			long[] table 	 = getCostTable();
+			
+			// Without an estimate all chunks have the same width
+			int[]  starts 	 = new int[maxChunks+1];
+			long[] chunkCost = new long[maxChunks];
+			int    count 	 = 0;
+			if(table == null)
+			{
+				for(count=0; count<maxChunks; count++)
+				{
+					starts[count] = count*CHUNK_COLUMNS;
+				}
+			}
+			else
+			{
+				long[] costs  = new long[columns];
+				long   lTotal = 0;
+				for(int i=0; i<columns; i++)
+				{
+					costs[i] = getCost(table, firstColumn + i*step, startY, settings.height);
+					lTotal 	+= costs[i];
+				}
+				
+				// Cut the columns into chunks of about the same cost - narrow ones where the points are expensive
+				long lTarget = lTotal/Math.max(1, maxChunks) + 1;
+				for(int i=0; i<columns; i++)
+				{
+					if(i == 0 || chunkCost[count-1] >= lTarget)
+						starts[count++] = i;
+					chunkCost[count-1] += costs[i];
+				}
+			}
+			starts[count] = columns;
+			
+			bandRows 	= (traversal == TraversalOrder.FOCUS) ? BAND_ROWS : Math.max(1, rows);
+			bands 		= Math.max(1, (rows + bandRows - 1)/bandRows);
+			chunks 		= count*bands;
+			chunkStarts = starts;
+			cellBands 	= getCellBands(rows);
+			doneCells 	= (done != null && done.length == (columns*cellBands + 63)/64) ? done.clone() : new long[(columns*cellBands + 63)/64];
+			
+			if(traversal == TraversalOrder.FOCUS)
+			{
+				float focusX = fFocusX, focusY = fFocusY;
+				if(focusX < 0 || focusY < 0 || focusX >= settings.width || focusY >= settings.height)
+				{
+					focusX = settings.width/2f;
+					focusY = settings.height/2f;
+				}
+				
+				// The nearer ring to the focus, the sooner. Within a ring the most expensive chunks go first, 
+				// so the workers finish the ring together.
+				int[]  rings = new int[chunks];
+				long[] costs = new long[chunks];
+				for(int i=0; i<chunks; i++)
+				{
+					int    right  = Math.min(settings.width,  getRight(i));
+					int    bottom = Math.min(settings.height, getBottom(i));
+					double dx 	  = (getColumn(i) + right)/2.0 - focusX;
+					double dy 	  = (getTop(i) 	 + bottom)/2.0 - focusY;
+					rings[i] 	  = (int)(Math.sqrt(dx*dx + dy*dy)/FOCUS_RING);
+					
+					for(int x=getColumn(i); table!=null && x<right; x+=step)
+					{
+						costs[i] += getCost(table, x, getTop(i), bottom);
+					}
+				}
+				order = getOrder(rings, costs, chunks);
+			}
+			else
+			{
+				order = getOrder(null, chunkCost, chunks);
+			}
+		}
+		
+		/** Marks the cells of a chunk as finished. Called while holding the monitor of the drawer. */
+		void markDone(int chunk)
+		{
+			int band 	  = chunk%bands;
+			int firstCell = band*bandRows/BAND_ROWS;
+			int lastCell  = Math.min(cellBands, ((band+1)*bandRows + BAND_ROWS - 1)/BAND_ROWS);
+			
+			for(int i=chunkStarts[chunk/bands]; i<chunkStarts[chunk/bands + 1]; i++)
+			{
+				for(int cell=firstCell; cell<lastCell; cell++)
+				{
+					int bit = i*cellBands + cell;
+					doneCells[bit >>> 6] |= 1L << bit;
+				}
+			}
+		}
+		
+		/** Returns the first column of a chunk */
+		int getColumn(int chunk)
+		{
+			return firstColumn + chunkStarts[chunk/bands]*step;
+		}
+		
+		/** Returns the column after a chunk (may be outside of the drawing area) */
+		int getRight(int chunk)
+		{
+			return firstColumn + chunkStarts[chunk/bands + 1]*step;
+		}
+		
+		/** Returns the first row of a chunk */
+		int getTop(int chunk)
+		{
+			return startY + (chunk%bands)*bandRows*step;
+		}
+		
+		/** Returns the row after a chunk (may be outside of the drawing area) */
+		int getBottom(int chunk)
+		{
+			return getTop(chunk) + bandRows*step;
+		}
+		
+		/** Returns the estimated cost of the points of the pass in a column between two rows
+		 * 
+		 * @param table  - the cost table of the stage
+		 * @param x 	 - the column
+		 * @param top 	 - the first row
+		 * @param bottom - the row after the last one
+		 */
+		private long getCost(long[] table, int x, int top, int bottom)
+		{
+			int grid = STAGE_PASSES[0][0][2];
+			int base = (x/grid)*(iCostTableRows+1);
+			return table[base + Math.min(iCostTableRows, (bottom + grid - 1)/grid)] - table[base + Math.min(iCostTableRows, top/grid)];
+		}
+	}
+	
+	
+	/** Returns the cost table of the current stage, estimating it at the first pass of the stage. The cost of each cell 
+	 *  of the stage 0 grid is estimated from the value of its grid point (calculated by stage 0, or taken from the preview 
+	 *  or the low resolution frame) - the points of the later stages are the neighbors of the grid points.
+	 *  Only the grid points are read, once per stage, so the estimate costs far less than the passes.
+	 * 
+	 * @return - the sums of the estimated costs (in iterations) of the cells down each column of cells, 
+	 * 			 or null if nothing is known about the points
+	 */
+	private long[] getCostTable()
+	{
+		if(iCostTableStage == iDrawingStage)
+			return costTable;
+		
+		final int width  = snapshot.width;
+		final int height = snapshot.height;
+		final int grid 	 = STAGE_PASSES[0][0][2];
+		final int probe  = (iDrawingStage == 0) ? 0 : grid/2; // The point of the cell whose known bit tells if the points of the stage are known
+		final int rows 	 = (height + grid - 1)/grid;
+		final int cols 	 = (width  + grid - 1)/grid;
+		long[] table 	 = new long[cols*(rows+1)]; // For each column of cells: 0, then the costs of its cells (-1 - unknown)
+		long   lKnownCost = 0;
+		int    iKnown 	 = 0;
+		
+		for(int gx=0; gx<cols; gx++)
+		{
+			int x  = gx*grid;
+			int px = Math.min(width-1, x + probe);
+			for(int gy=0; gy<rows; gy++)
+			{
+				int y 	  = gy*grid;
+				int index = px + Math.min(height-1, y + probe)*width;
+				int slot  = gx*(rows+1) + gy+1;
+				
+				// The known points are not calculated at all
+				if((knownPoints[index >>> 6] & (1L << index)) != 0)
+					continue;
+				
+				int iterations = ongoingFractalImage.get(x, y);
+				if(iterations < 0)
+				{
+					table[slot] = -1;
+				}
+				else
+				{
+					table[slot] = POINT_OVERHEAD + iterations;
+					lKnownCost += POINT_OVERHEAD + iterations;
+					iKnown++;
+				}
+			}
+		}
+		
+		// The cells nothing is known about cost as much as the known ones on average
+		if(iKnown > 0)
+		{
+			long lAverage = lKnownCost/iKnown;
+			for(int gx=0; gx<cols; gx++)
+			{
+				int base = gx*(rows+1);
+				for(int gy=1; gy<=rows; gy++)
+				{
+					table[base+gy] = table[base+gy-1] + (table[base+gy] < 0 ? lAverage : table[base+gy]);
+				}
+			}
+		}
+		
+		costTable 		= (iKnown > 0) ? table : null;
+		iCostTableRows 	= rows;
+		iCostTableStage = iDrawingStage;
+		return costTable;
+	}
 	
 	
-	private double  dCurrentX; 		 // The current point that is inspected (in complex coordinates). Defined here for performance reasons
-	private double 	dCurrentY;		
-	private double  dThirdDistanceX; // The distance from the current point that we are inspecting to it's nearest neighbor, divided by 3.3 (Defined here for performance reasons)
-	private double  dThirdDistanceY;  
-	private int 	iCurrentX;	     // The current point that is inspected (in drawing/display coordinates). Defined here for performance reasons
-	private int		iCurrentY; 
+	/** Orders the chunks of a pass by their group (the lowest first) and within the group by their estimated 
+	 *  cost (the highest first). When a chunk takes longer than estimated, the other workers take the remaining 
+	 *  chunks meanwhile.
+	 * 
+	 * @param groups - group of each chunk (null - all chunks are in one group)
+	 * @param costs  - estimated cost of each chunk
+	 * @param chunks - number of chunks (at most ORDER_LEVELS)
+	 * @return - indexes of the chunks in the order they should be taken
+	 */
+	private static int[] getOrder(int[] groups, long[] costs, int chunks)
+	{
+		long lMax = 0;
+		for(int i=0; i<chunks; i++)
+		{
+			lMax = Math.max(lMax, costs[i]);
+		}
+		
+		// Each key holds the group, the cost scaled to ORDER_LEVELS (inverted, so the highest goes first) and 
+		// the index of the chunk - the chunks of the same group and cost stay from left to right
+		double dScale = (lMax > 0) ? (ORDER_LEVELS - 1)/(double)lMax : 0;
+		long[] keys   = new long[chunks];
+		for(int i=0; i<chunks; i++)
+		{
+			long lGroup = (groups != null) ? groups[i] : 0;
+			long lLevel = (ORDER_LEVELS - 1) - (long)(costs[i]*dScale);
+			keys[i] 	= (lGroup << 40) | (lLevel << 20) | i;
+		}
+		Arrays.sort(keys);
+		
+		int[] order = new int[chunks];
+		for(int i=0; i<chunks; i++)
+		{
+			order[i] = (int)(keys[i] & (ORDER_LEVELS - 1));
+		}
+		return order;
+	}
 	
 	
-	private boolean bAntialiasing = false;
-	//----------------------
-
-   
-	/** Starts a thread which is building the fractal image
-	 *  
-	 * @param coordMngr
+	/** Returns the number of cells in each column of a pass with the supplied number of rows
 	 */
-	public FractalDrawer(FractalSettings settings)
-	{	
-		fractalSettings = settings;
-	    colorCreator 	= new ColorCreator();
-	    init();
-		// Start the Thread and thus the drawing of the fractal
-		this.setPriority(NORM_PRIORITY);
-		this.start();
+	private static int getCellBands(int rows)
+	{
+		return Math.max(1, (rows + BAND_ROWS - 1)/BAND_ROWS);
 	}
 	
 	
-	/** Checks if there is calculation  ongoing
-	 * 
-	 * @return true - the thread is currently processing fractal points
+	/** Helper thread calculating the chunks of the passes together with the drawing thread
 	 */
-	public synchronized boolean isCurrentlyProcessing()
+	private final class Worker extends Thread
 	{
-		if(iDrawingStage < CALCULATION_STAGE_FINISHED)
+		private final int index; // Index of the worker (its histogram shard)
+		
+		Worker(int index)
 		{
-			return true;
+			this.index = index;
+			this.setPriority(NORM_PRIORITY);
+			this.setDaemon(true);
+			this.start();
+		}
+		
+		@Override
+		public void run()
+		{
+			while(true)
+			{
+				PassTask task = null;
+				synchronized(FractalDrawer.this)
+				{
+					while(bShutdown == false && ((task = passTask) == null || canClaim(task, index) == false))
+					{
+						try{FractalDrawer.this.wait();}catch(InterruptedException e){e.printStackTrace();}
+					}
+					if(bShutdown)
+						return;
+				}
+				
+				int  chunk;
+				long lBusySince = System.nanoTime();
+				while((chunk = claimChunk(task, index)) >= 0)
+				{
+					finishChunk(task, chunk, calculateChunk(task, chunk, index));
+					lBusySince = rest(lBusySince);
+				}
+			}
 		}
-		return false;
 	}
 	
-	public synchronized boolean isAnyDataAvailable()
+	
+	/** Inspects every step-th point of the drawing area (in both directions) starting from (startX, startY).
+	 *  The columns are calculated by all active workers, the drawing thread publishes the progress meanwhile.
+	 *  Returns when the pass is finished or abandoned and none of the workers works on it anymore.
+	 * 
+	 * @param startX - x-coordinate (in window coordinates) of the first point to be inspected
+	 * @param startY - y-coordinate (in window coordinates) of the first point to be inspected
+	 * @param step	 - distance in pixels between two inspected points
+	 * @param block	 - each inspected point fills the not inspected pixels of its block x block pixels (1 - only itself)
+	 * @param done	 - the cells of the pass finished before (their points are known; null if none)
+	 * @return - true if the pass was completed; false if it was abandoned because a restart was requested
+	 */
+	private boolean processPass(int startX, int startY, int step, int block, long[] done)
 	{
-		// If we are at calculation stage 0 - we don't have anything to draw yet
-		if(iDrawingStage==0)
+		PassTask task 	 = new PassTask(startX, startY, step, block, done);
+		int 	 iCounted = histogram.getCount();
+		long 	 lStart  = System.nanoTime();
+		applyRenderPolicy();
+		
+		// Let the helpers in
+		synchronized(this)
+		{
+			passTask = task;
+			notifyAll();
+		}
+		
+		long lBusySince = System.nanoTime();
+		while(true)
+		{
+			int chunk = claimChunk(task, 0);
+			if(chunk >= 0)
+			{
+				finishChunk(task, chunk, calculateChunk(task, chunk, 0));
+				lBusySince = rest(lBusySince);
+			}
+			else if(waitForHelpers(task) == false)
+			{
+				break;
+			}
+			
+			// Let the display thread show the progress within the stage and save it once in a while
+			reportProgress(task, false);
+		}
+		
+		// The buffers must not be touched by the helpers once this job is left
+		synchronized(this)
+		{
+			passTask = null;
+			while(task.iRunning > 0)
+			{
+				try{wait();}catch(InterruptedException e){e.printStackTrace();}
+			}
+		}
+		
+		if(isRestartRequested())
 			return false;
 		
+		takeProgress(task);
+		measureThroughput(task, histogram.getCount() - iCounted, System.nanoTime() - lStart - task.lPausedTime);
 		return true;
 	}
 	
 	
-	
-	/**
-	 *  Point inspection is done here based on the supplied FractalSettings. 
-	 *  When all points have been inspected the thread will go to sleep waiting for interrupt event.
+	/** Waits while the helpers calculate the last chunks of the pass or while the calculation is paused.
+	 * 
+	 * @param task - the pass
+	 * @return - false if the pass is finished or abandoned
 	 */
-	@Override
-	public void run()
+	private boolean waitForHelpers(PassTask task)
 	{
-		while(true)
+		boolean bIdle;
+		
+		synchronized(this)
+		{
+			if(isRestartRequested() || task.iFinished == task.chunks)
+				return false;
+			
+			// Nobody calculates - the calculation is paused
+			bIdle = task.iRunning == 0;
+			if(bIdle == false)
+			{
+				try{wait(PUBLISH_INTERVAL/1000000);}catch(InterruptedException e){e.printStackTrace();}
+			}
+		}
+		
+		if(bIdle)
 		{
-		    if(fractalProcessing() ==  false)
-		    {
-		        synchronized(this)
-                {
-                    try{wait();}catch(Exception e){e.printStackTrace();}
-                }
-		    }
+			// The process may be killed while paused - save everything calculated before the pause
+			reportProgress(task, true);
+			
+			long lPausedSince = System.nanoTime();
+			synchronized(this)
+			{
+				while(bPaused && isRestartRequested() == false)
+				{
+					try{wait();}catch(InterruptedException e){e.printStackTrace();}
+				}
+			}
+			task.lPausedTime += System.nanoTime() - lPausedSince;
 		}
+		return true;
 	}
 	
 	
-
-	/**Draws the current state of the fractal onto the canvas.
+	/** Checks if a worker may take another chunk of the pass. Must be called while holding the monitor.
+	 */
+	private boolean canClaim(PassTask task, int worker)
+	{
+		return bPaused == false && worker < iActiveWorkers && task.generation == iRequestedGeneration && task.iNextChunk < task.chunks;
+	}
+	
+	
+	/** Takes the next chunk of the pass for a worker
 	 * 
-	 * @param canvas	- Drawing destination
-	 * @param settings	- The current settings used for drawing.
-	 * @return - Calculation stages:
-	 * 			0 - Nothing has been drawn (calculation ongoing)
-	 *			1 - First stage has been calculated and drawn (calculation ongoing)
-	 *			...
-	 *			4 - Fractal has been fully drawn (calculation finished)
+	 * @return - index of the chunk or -1 if the worker should stop
 	 */
-    public int drawFractal(Canvas canvas, FractalSettings settings)
-    {
-        int[]  bitmapArray;
-        int    stage;
-        
-    	
-        synchronized(this)
-        {     	
-        	// Do not draw if nothing has been calculated or if we need to draw a new fractal 
-        	if(iDrawingStage == 0 || doInit)
-        		return 0;
-        	
-            bitmapArray = colorCreator.getColorArray(completedFractalImage,
-			                                         fractalSettings.iterationsLimmit, 
-			                                         settings.getColorMode(),
-			                                         settings.getColorPeriodicity());
-        
-            canvas.drawBitmap(
-            			  bitmapArray,
-                          0,           // Offset into the array of colors for the first pixel
-                          fractalSettings.width, // The number of of colors in the array between rows (must be >= width or <= -width).
-                          0, 0,        // The X and Y coordinates for where to draw the bitmap
-                          fractalSettings.width, 
-                          fractalSettings.height,
-                          false,       // True if the alpha channel of the colors contains valid values. If false, the alpha byte is ignored  (assumed to be 0xFF for every pixel).
-                          null   );    // May be null. The paint used to draw the bitmap 
-        
-        
-        	stage = iDrawingStage;
-        }
-        
-        return stage;
-    }
+	private synchronized int claimChunk(PassTask task, int worker)
+	{
+		if(canClaim(task, worker) == false)
+			return -1;
+		
+		task.iRunning++;
+		return task.order[task.iNextChunk++];
+	}
 	
-
-    /**
-     * Start drawing the fractal from the beginning
-     */
-	public void resetProcessing()
+	
+	/** Records a chunk as finished (or abandoned). The drawing thread is woken up only when nobody calculates 
+	 *  the pass anymore (it is finished or paused) - otherwise it looks at the progress once per PUBLISH_INTERVAL.
+	 */
+	private synchronized void finishChunk(PassTask task, int chunk, boolean bFinished)
 	{
-	    doInit = true;
-	    bAntialiasing = false;
-	    
-	    // If the thread is calculating, interrupt it
-        if(this.isAlive())
-            this.interrupt();
-        // If the thread is waiting, notify it
-        else
-            this.notifyAll();
+		task.iRunning--;
+		if(bFinished)
+		{
+			task.iFinished++;
+			task.markDone(chunk);
+			
+			task.iDirtyLeft  = Math.min(task.iDirtyLeft,  task.getColumn(chunk));
+			task.iDirtyRight = Math.max(task.iDirtyRight, Math.min(task.settings.width, task.getRight(chunk)));
+		}
+		if(task.iRunning == 0)
+			notifyAll();
 	}
 	
-	 /**
-     * Start drawing the fractal from the beginning
-     */
-	public void resetProcessingWithAntialiasing()
+	
+	/** Marks the columns finished since the last call as changed (for the display and the checkpoint)
+	 */
+	private void takeProgress(PassTask task)
 	{
-	    doInit = true;
-	    bAntialiasing = true;
-	    
-	    // If the thread is calculating, interrupt it
-        if(this.isAlive())
-            this.interrupt();
-        // If the thread is waiting, notify it
-        else
-            this.notifyAll();
+		int left, right;
+		synchronized(this)
+		{
+			left   = task.iDirtyLeft;
+			right  = task.iDirtyRight;
+			task.iDirtyLeft  = Integer.MAX_VALUE;
+			task.iDirtyRight = 0;
+		}
+		
+		if(left < right)
+		{
+			dirtyRegion.union(left, 0, right, task.settings.height);
+			iCheckpointDirtyLeft  = Math.min(iCheckpointDirtyLeft,  left);
+			iCheckpointDirtyRight = Math.max(iCheckpointDirtyRight, right);
+		}
 	}
 	
 	
+	/** Returns a copy of the finished cells of the pass, with which it would continue after a restart of the application
+	 */
+	private synchronized long[] getDoneCells(PassTask task)
+	{
+		return task.doneCells.clone();
+	}
+	
 	
-	/** Draws a fractal of the type iFractID on a bitmap using the information
-	 *  supplied by CoordSysManager
+	/** Publishes the progress of the pass and saves it when it is due
 	 * 
-	 * @param fractalSettings Class containing all the info about 
-	 * @param iFractID	ID specifying which fractal type is to be drawn
-	 * @return			True - if more stages of drawing remain and we should call the function again
-	 * 					False - if no more stages of drawing remain and calling is not needed
+	 * @param task 	   - the pass
+	 * @param bSaveNow - save the progress now if anything has changed since the last checkpoint
 	 */
-	private boolean fractalProcessing ()
-	{	
-		if(doInit)
+	private void reportProgress(PassTask task, boolean bSaveNow)
+	{
+		takeProgress(task);
+		
+		long lNow = System.nanoTime();
+		if(lNow >= lNextPublishTime)
 		{
-			doInit = false;
-		    init();
-		    
+			publishProgress();
 		}
 		
+		// The low resolution frame is not a pass of any stage - the checkpoint is saved with the next one
+		if(task.block == 1 && (lNow >= lNextCheckpointTime || bCheckpointRequested || (bSaveNow && iCheckpointDirtyLeft < iCheckpointDirtyRight)))
+		{
+			saveCheckpoint(iCurrentPass, getDoneCells(task));
+		}
+	}
+	
+	
+	/** Called by a worker after each chunk. Once the worker has calculated for DUTY_PERIOD, it sleeps 
+	 *  for as long as the duty cycle requires (a chunk usually takes less than the sleeping granularity).
+	 * 
+	 * @param lBusySince - System.nanoTime() since which the worker calculates without sleeping
+	 * @return - System.nanoTime() since which the worker calculates without sleeping after this call
+	 */
+	private long rest(long lBusySince)
+	{
+		float duty = fDutyCycle;
+		long  lNow = System.nanoTime();
+		if(duty >= 1f)
+			return lNow;
+		if(lNow - lBusySince < DUTY_PERIOD)
+			return lBusySince;
 		
-		// Implementation of the algorithm for drawing the fractal image. 
-		// It is made so that it looks like that the fractal is coming out gradually
-		switch (iDrawingStage) 
+		long lRest = (long)((lNow - lBusySince)*(1f - duty)/duty);
+		try{Thread.sleep(lRest/1000000, (int)(lRest%1000000));}catch(InterruptedException e){e.printStackTrace();}
+		return System.nanoTime();
+	}
+	
+	
+	/** Calculates the points of one chunk of the pass. Called by any of the workers.
+	 * 
+	 * @param task   - the pass
+	 * @param chunk  - index of the chunk
+	 * @param worker - index of the calling worker
+	 * @return - true if the chunk was finished; false if it was abandoned because a restart was requested
+	 */
+	private boolean calculateChunk(PassTask task, int chunk, int worker)
+	{
+		// Read the settings into locals - they don't change during the render job
+		final FractalSnapshot   settings   = task.settings;
+		final FractalCalculator calculator = task.calculator;
+		final int               width      = settings.width;
+		final int               height     = settings.height;
+		final int               iterLimit  = settings.iterationsLimmit;
+		final char[]            narrow     = task.image.narrow; // Only one of the two exists
+		final int[]             wide       = task.image.wide;
+		final IterationHistogram counter   = task.counter;
+		final long[]            known      = task.known;
+		final int				generation = task.generation;
+		final int				step	   = task.step;
+		final int				block	   = task.block;
+		final int				right	   = Math.min(width,  task.getRight(chunk));
+		final int				bottom	   = Math.min(height, task.getBottom(chunk));
+		
+		for(int x=task.getColumn(chunk); x<right; x+=step)
 		{
-			case 0:
-				for(iCurrentX=0; iCurrentX<fractalSettings.width; iCurrentX+=4)
-				{
-					for(iCurrentY=0; iCurrentY<fractalSettings.height; iCurrentY+=4)
-					{			
-						// Anti Aliasing is OFF. Test just the points from the display.
-						if ( bAntialiasing == false)
-						{
-							// Converts current point from the display to a point from the complex plain
-							dCurrentX = fractalSettings.getRealCoord_X(iCurrentX, iCurrentY);
-							dCurrentY = fractalSettings.getRealCoord_Y(iCurrentX, iCurrentY);
-
-							// Inspects if the current point belongs to the Mandelbrot (other) set
-							iterationsCount = fractalCalculator.testPoint(
-													   		    dCurrentX,
-													   		    dCurrentY,
-													   		    fractalSettings.iterationsLimmit
-													    	   );
-						}
-						// Anti Aliasing is ON. Test neighboring points also.
-						else
-						{ 
-							iterationsCount = testPointAntiAliasing();
-						}
-											
-						
-						
-						// Save the number of iterations for the current point 
-						ongoingFractalImage[iCurrentX+iCurrentY*fractalSettings.width] = iterationsCount;	
-					}//for
-				}//for
-						
+			for(int y=task.getTop(chunk); y<bottom; y+=step)
+			{
+				// The thread should restart drawing
+				if(generation != iRequestedGeneration)
+					return false;
 				
-				synchronized(this)
+				// The value is already known (e.g. from the prefetch cache)
+				int index = x+y*width;
+				if((known[index >>> 6] & (1L << index)) != 0)
 				{
-					// Save the result from the current drawing phase 
-				    System.arraycopy(ongoingFractalImage, 0, completedFractalImage, 0, completedFractalImage.length); 
-					// Go to the next stage when this function is called again
-					iDrawingStage++;
+					if(block > 1)
+						fillBlock(narrow, wide, width, height, x, y, block, (narrow != null) ? narrow[index] : wide[index]);
+					continue;
 				}
-			
-				return true; // More drawing to come   
-				
 				
-			case 1:
-				for(iCurrentX=2; iCurrentX<fractalSettings.width; iCurrentX+=4)
-				{
-					for(iCurrentY=2; iCurrentY<fractalSettings.height; iCurrentY+=4)
-					{
-						// The thread should restart drawing
-						if(Thread.interrupted())
-							return true;
-						
-						// Anti Aliasing is OFF. Test just the points from the display.
-						if ( bAntialiasing == false)
-						{
-							// Converts current point from the display to a point from the complex plain.
-							dCurrentX = fractalSettings.getRealCoord_X(iCurrentX, iCurrentY);
-							dCurrentY = fractalSettings.getRealCoord_Y(iCurrentX, iCurrentY);
-                            
-							// Inspects if the current point belongs to the Mandelbrot (other) set
-							iterationsCount = fractalCalculator.testPoint(
-													   		  dCurrentX,
-													   		  dCurrentY,
-													   		  fractalSettings.iterationsLimmit
-													    	  );
-						}
-						// Anti Aliasing is ON. Test neighboring points also.
-						else
-						{ 
-							iterationsCount = testPointAntiAliasing();
-						}
-						
-						// Save the number of iterations for the current point 
-						ongoingFractalImage[iCurrentX+iCurrentY*fractalSettings.width]   = iterationsCount;	
-					}
-				}//for
+				int iterationsCount;
 				
-				synchronized(this)
+				// Anti Aliasing is OFF. Test just the points from the display.
+				if (task.antialiasing == false)
 				{
-					// Save the result from the current drawing phase 
-				    System.arraycopy(ongoingFractalImage, 0, completedFractalImage, 0, completedFractalImage.length); 
-					// Go to the next stage when this function is called again
-					iDrawingStage++;
+					// Inspects if the current point belongs to the Mandelbrot (other) set
+					iterationsCount = calculator.testPoint(settings.getRealCoord_X(x, y), settings.getRealCoord_Y(x, y), iterLimit);
 				}
-				return true; // More drawing to come   
-				
-				
-			case 2:
-				for(iCurrentX=0; iCurrentX<fractalSettings.width; iCurrentX+=4)
-				{
-					for(iCurrentY=2; iCurrentY<fractalSettings.height; iCurrentY+=4)
-					{
-						// The thread should restart drawing
-						if(Thread.interrupted())
-							return true;
-						
-						// Anti Aliasing is OFF. Test just the points from the display.
-						if ( bAntialiasing == false)
-						{
-							// Converts current point from the display to a point from the complex plain.
-							dCurrentX = fractalSettings.getRealCoord_X(iCurrentX, iCurrentY);
-							dCurrentY = fractalSettings.getRealCoord_Y(iCurrentX, iCurrentY);
-                            
-							// Inspects if the current point belongs to the Mandelbrot (other) set
-							iterationsCount = fractalCalculator.testPoint(
-													   		  dCurrentX,
-													   		  dCurrentY,
-													   		  fractalSettings.iterationsLimmit
-													    	  );
-						}
-						// Anti Aliasing is ON. Test neighboring points also.
-						else
-						{ 
-							iterationsCount = testPointAntiAliasing();
-						}
-						
-						// Save the number of iterations for the current point 
-						ongoingFractalImage[iCurrentX+iCurrentY*fractalSettings.width]   = iterationsCount;	
-					}
-				}//for
-				for(iCurrentX=2; iCurrentX<fractalSettings.width; iCurrentX+=4)
-				{
-					for(iCurrentY=0; iCurrentY<fractalSettings.height; iCurrentY+=4)
-					{
-						// The thread should restart drawing
-						if(Thread.interrupted())
-							return true;
-						
-						// Anti Aliasing is OFF. Test just the points from the display.
-						if ( bAntialiasing == false)
-						{
-							// Converts current point from the display to a point from the complex plain.
-							dCurrentX = fractalSettings.getRealCoord_X(iCurrentX, iCurrentY);
-							dCurrentY = fractalSettings.getRealCoord_Y(iCurrentX, iCurrentY);
-                            
-							// Inspects if the current point belongs to the Mandelbrot (other) set
-							iterationsCount = fractalCalculator.testPoint(
-													   		  dCurrentX,
-													   		  dCurrentY,
-													   		  fractalSettings.iterationsLimmit
-													    	  );
-						}
-						// Anti Aliasing is ON. Test neighboring points also.
-						else
-						{ 
-							iterationsCount = testPointAntiAliasing();
-						}
-						
-						// Save the number of iterations for the current point 
-						ongoingFractalImage[iCurrentX+iCurrentY*fractalSettings.width]   = iterationsCount;	
-					}
-				}//for
-				
-				synchronized(this)
-				{
-					// Save the result from the current drawing phase 
-				    System.arraycopy(ongoingFractalImage, 0, completedFractalImage, 0, completedFractalImage.length); 
-					// Go to the next stage when this function is called again
-					iDrawingStage++;
+				// Anti Aliasing is ON. Test neighboring points also.
+				else
+				{ 
+					iterationsCount = testPointAntiAliasing(task, x, y);
 				}
-				return true; // More drawing to come   
-				
 				
-			case 3:
-				for(iCurrentX=1; iCurrentX<fractalSettings.width; iCurrentX+=2)
-				{
-					for( iCurrentY=1; iCurrentY<fractalSettings.height; iCurrentY+=2)
-					{
-						// The thread should restart drawing
-						if(Thread.interrupted())
-							return true;
-						
-						// Anti Aliasing is OFF. Test just the points from the display.
-						if ( bAntialiasing == false)
-						{
-							// Converts current point from the display to a point from the complex plain.
-							dCurrentX = fractalSettings.getRealCoord_X(iCurrentX, iCurrentY);
-							dCurrentY = fractalSettings.getRealCoord_Y(iCurrentX, iCurrentY);
-                            
-							// Inspects if the current point belongs to the Mandelbrot (other) set
-							iterationsCount = fractalCalculator.testPoint(
-													   		  dCurrentX,
-													   		  dCurrentY,
-													   		  fractalSettings.iterationsLimmit
-													    	  );
-						}
-						// Anti Aliasing is ON. Test neighboring points also.
-						else
-						{ 
-							iterationsCount = testPointAntiAliasing();
-						}
-						
-						// Save the number of iterations for the current point 
-						ongoingFractalImage[iCurrentX+iCurrentY*fractalSettings.width]   = iterationsCount;	
-					}
-				}//for
+				// Save the number of iterations for the current point (+1, as 0 means not inspected)
+				if(narrow != null)
+					narrow[index] = (char)(iterationsCount+1);
+				else
+					wide[index] = iterationsCount+1;
+				counter.add(worker, iterationsCount);
 				
-				synchronized(this)
+				if(block > 1)
+					fillBlock(narrow, wide, width, height, x, y, block, iterationsCount+1);
+			}//for
+		}//for
+		
+		return true;
+	}
+	
+	
+	/** Gives the not inspected pixels of a block the value of its inspected point (the block stays in the columns of its chunk)
+	 * 
+	 * @param x, y  - the inspected point (the top left corner of the block)
+	 * @param block - size of the block in pixels
+	 * @param value - the stored value of the point (iterations+1)
+	 */
+	private static void fillBlock(char[] narrow, int[] wide, int width, int height, int x, int y, int block, int value)
+	{
+		int right  = Math.min(width,  x+block);
+		int bottom = Math.min(height, y+block);
+		for(int j=y; j<bottom; j++)
+		{
+			for(int index=j*width+x, end=j*width+right; index<end; index++)
+			{
+				if(narrow != null)
 				{
-					// Save the result from the current drawing phase 
-				    System.arraycopy(ongoingFractalImage, 0, completedFractalImage, 0, completedFractalImage.length); 
-					// Go to the next stage when this function is called again
-					iDrawingStage++;
+					if(narrow[index] == 0)
+						narrow[index] = (char)value;
 				}
-				return true; // More drawing to come   
-				
-				
-			case 4:
-				for(iCurrentX=0; iCurrentX<fractalSettings.width; iCurrentX+=2)
-				{
-					for(iCurrentY=1; iCurrentY<fractalSettings.height; iCurrentY+=2)
-					{
-						// The thread should restart drawing
-						if(Thread.interrupted())
-							return true;
-						
-						// Anti Aliasing is OFF. Test just the points from the display.
-						if ( bAntialiasing == false)
-						{
-							// Converts current point from the display to a point from the complex plain.
-							dCurrentX = fractalSettings.getRealCoord_X(iCurrentX, iCurrentY);
-							dCurrentY = fractalSettings.getRealCoord_Y(iCurrentX, iCurrentY);
-                            
-							// Inspects if the current point belongs to the Mandelbrot (other) set
-							iterationsCount = fractalCalculator.testPoint(
-													   		  dCurrentX,
-													   		  dCurrentY,
-													   		  fractalSettings.iterationsLimmit
-													    	  );
-						}
-						// Anti Aliasing is ON. Test neighboring points also.
-						else
-						{ 
-							iterationsCount = testPointAntiAliasing();
-						}	
-						
-						// Save the number of iterations for the current point 
-						ongoingFractalImage[iCurrentX+iCurrentY*fractalSettings.width]   = iterationsCount;	
-					}
-				}//for
-				for(iCurrentX=1; iCurrentX<fractalSettings.width; iCurrentX+=2)
-				{
-					for(iCurrentY=0; iCurrentY<fractalSettings.height; iCurrentY+=2)
-					{
-						// The thread should restart drawing
-						if(Thread.interrupted())
-							// Stop Drawing the current image
-							return true;
-						
-						// Anti Aliasing is OFF. Test just the points from the display.
-						if ( bAntialiasing == false)
-						{
-							// Converts current point from the display to a point from the complex plain.
-							dCurrentX = fractalSettings.getRealCoord_X(iCurrentX, iCurrentY);
-							dCurrentY = fractalSettings.getRealCoord_Y(iCurrentX, iCurrentY);
-                            
-							// Inspects if the current point belongs to the Mandelbrot (other) set
-							iterationsCount = fractalCalculator.testPoint(
-													   		  dCurrentX,
-													   		  dCurrentY,
-													   		  fractalSettings.iterationsLimmit
-													    	  );
-						}
-						// Anti Aliasing is ON. Test neighboring points also.
-						else
-						{ 
-							iterationsCount = testPointAntiAliasing();
-						}
-						
-						// Save the number of iterations for the current point 
-						ongoingFractalImage[iCurrentX+iCurrentY*fractalSettings.width]   = iterationsCount;	
-					}
-				}//for
-			
-				synchronized(this)
+				else if(wide[index] == 0)
 				{
-					// Save the result from the current drawing phase 
-				    System.arraycopy(ongoingFractalImage, 0, completedFractalImage, 0, completedFractalImage.length); 
-					// Go to the next stage when this function is called again
-					iDrawingStage++;
-				}		
-				return true; // More drawing to come   
-
-				
-			default:
-				return false; // Finished drawing 		
+					wide[index] = value;
+				}
+			}
 		}
-		
-	}//drawFract()
+	}
 	
 	
 	
@@ -521,75 +1872,74 @@ public class FractalDrawer extends Thread
 	 *                + + * + + * + + * + + 
 	 *                + + + + + + + + + + +
 	 * 
+	 *  Called by any of the workers - uses only the settings of the pass and locals.
 	 */
-	final private int testPointAntiAliasing() 
+	private static int testPointAntiAliasing(PassTask task, int x, int y) 
 	{
-		dCurrentX = fractalSettings.getRealCoord_X(iCurrentX, iCurrentY);
-		dCurrentY = fractalSettings.getRealCoord_Y(iCurrentX, iCurrentY);
-       
-
-		// Calculate the distance between two points on the drawing plane and divide by three
-		dThirdDistanceX = Math.abs(fractalSettings.getDistanceBetweenPixels_X()) / 3.3;
-		dThirdDistanceY = Math.abs(fractalSettings.getDistanceBetweenPixels_Y()) / 3.3;
-		
+		final FractalCalculator fractalCalculator = task.calculator;
+		final int 	 iterLimit 		 = task.settings.iterationsLimmit;
+		final double dThirdDistanceX = task.thirdDistanceX;
+		final double dThirdDistanceY = task.thirdDistanceY;
+		final double dCurrentX 		 = task.settings.getRealCoord_X(x, y);
+		final double dCurrentY 		 = task.settings.getRealCoord_Y(x, y);
 		
-		iterationsCount = 0;
 		
+		int iterationsCount = 0;
 		// Test the current point and the 8 of it's neighbors
         // --------------------------------------------------
 		// Current point (denoted as a star on the example)
 		iterationsCount += fractalCalculator.testPoint(
 											 dCurrentX,
 											 dCurrentY,
-											 fractalSettings.iterationsLimmit
+											 iterLimit
 										     );	
 		// Right of the current
 		iterationsCount += fractalCalculator.testPoint(
 											 dCurrentX + dThirdDistanceX,
 											 dCurrentY,
-											 fractalSettings.iterationsLimmit
+											 iterLimit
 										     );	
 		// Left of the current
 		iterationsCount += fractalCalculator.testPoint(
 											 dCurrentX - dThirdDistanceX,
 											 dCurrentY,
-											 fractalSettings.iterationsLimmit
+											 iterLimit
 										     );	
 		// Up from the current
 		iterationsCount += fractalCalculator.testPoint(
 											 dCurrentX,
 											 dCurrentY - dThirdDistanceY,
-											 fractalSettings.iterationsLimmit
+											 iterLimit
 										     );	
 		// Down from the current
 		iterationsCount += fractalCalculator.testPoint(
 											 dCurrentX,
 											 dCurrentY + dThirdDistanceY,
-											 fractalSettings.iterationsLimmit
+											 iterLimit
 										     );	
 		// Right and up from the current
 		iterationsCount += fractalCalculator.testPoint(
 											 dCurrentX + dThirdDistanceX,
 											 dCurrentY - dThirdDistanceY,
-											 fractalSettings.iterationsLimmit
+											 iterLimit
 										     );	
 		// Right and down from the current
 		iterationsCount += fractalCalculator.testPoint(
 											 dCurrentX + dThirdDistanceX,
 											 dCurrentY + dThirdDistanceY,
-											 fractalSettings.iterationsLimmit
+											 iterLimit
 										     );	
 		//Left and up from the current
 		iterationsCount += fractalCalculator.testPoint(
 											 dCurrentX - dThirdDistanceX,
 											 dCurrentY - dThirdDistanceY,
-											 fractalSettings.iterationsLimmit
+											 iterLimit
 										     );	
 		// Left and down from the current
 		iterationsCount += fractalCalculator.testPoint(
 											 dCurrentX - dThirdDistanceX,
 											 dCurrentY + dThirdDistanceY,
-											 fractalSettings.iterationsLimmit
+											 iterLimit
 										     );	
 		
 		
@@ -602,40 +1952,302 @@ public class FractalDrawer extends Thread
 	
 	
 
-	/** Inits the data fields of the class.
-	 *  
-	 * @param settings
+	/** Inits the data fields of the class for the render job of the snapshot. Called by the drawing thread
+	 *  without holding the monitor - only the stage is read by the other threads.
 	 */
-    private synchronized void init()
+    private void init()
     {
-    	
-    	iDrawingStage = 0; // Start drawing the fractal from the beginning
-    	 
-        fractalCalculator = FractalCalculator.getInstance(fractalSettings.getFractalType()); 
-        fractalCalculator.setConstant(fractalSettings.getImaginaryConstantRe(), 
-                                      fractalSettings.getImaginaryConstantIm() ); 
+        fractalCalculator = FractalCalculator.getInstance(snapshot.fractalType); 
+        fractalCalculator.setConstant(snapshot.complexConstantRe, 
+                                      snapshot.complexConstantIm ); 
+        
+		// Calculate the distance between two points on the drawing plane and divide by three (used for anti aliasing)
+		dThirdDistanceX = Math.abs(snapshot.getDistanceBetweenPixels_X()) / 3.3;
+		dThirdDistanceY = Math.abs(snapshot.getDistanceBetweenPixels_Y()) / 3.3;
+        
+        // Keep the image of the previous job and take the spare buffer for the new one
+        IterationBuffer previous = ongoingFractalImage;
+        ongoingFractalImage  	 = previousFractalImage;
+        previousFractalImage 	 = previous;
         
         // Create the buffer where the currently processed image is going to be stored
         if(ongoingFractalImage == null ||    // if it has not been created
-           ongoingFractalImage.length != fractalSettings.height*fractalSettings.width)       // if the screen size has changed
+           ongoingFractalImage.fits(snapshot.width, snapshot.height, snapshot.iterationsLimmit) == false) // if the screen size or the needed layout has changed
         {
-            ongoingFractalImage = new int[fractalSettings.width*fractalSettings.height];
+        	if(ongoingFractalImage != null)
+        		ongoingFractalImage.release(BufferPool.Subsystem.CALCULATION);
+            ongoingFractalImage = IterationBuffer.lease(snapshot.width, snapshot.height, snapshot.iterationsLimmit, BufferPool.Subsystem.CALCULATION);
         }
+        
+        IterationHistogram previousHistogram = histogram;
+        preparePreview(previous, previousHistogram);
            
-        // Create the buffer which will hold the results after each drawing phase.
-        if (completedFractalImage == null || 
-            completedFractalImage.length != fractalSettings.height*fractalSettings.width)                                                
+        // Each render job counts its points into a new histogram, so the display thread can keep using the old one
+        histogram 	  = new IterationHistogram(snapshot.iterationsLimmit, maxWorkers);
+        
+        // Take the points which are already known from the prefetch cache. The tiles of the 
+        // visited places fill the preview where the previous image doesn't cover the window 
+        // and replace it where their samples are closer to the new pixels.
+        if(prefetchCache == null)
+        {
+        	prefetchCache = new PrefetchCache(PREFETCH_SCREENS*ongoingFractalImage.getByteCount());
+        }
+        else if(snapshot.width != imageSnapshot.width || snapshot.height != imageSnapshot.height)
+        {
+        	// The images of the old size still hold the points of the resized window
+        	prefetchCache.setMaxBytes(PREFETCH_SCREENS*ongoingFractalImage.getByteCount());
+        }
+        if(knownPoints == null || knownPoints.length != (snapshot.width*snapshot.height+63)/64)
+        {
+        	knownPoints = new long[(snapshot.width*snapshot.height+63)/64];
+        }
+        else
+        {
+        	Arrays.fill(knownPoints, 0);
+        }
+        
+        // Each render job is a new one for the checkpoints - all its columns have to be saved
+        lJobId 				  = newJobId();
+        iCheckpointDirtyLeft  = 0;
+        iCheckpointDirtyRight = snapshot.width;
+        lJobStartTime 		  = System.nanoTime();
+        lNextCheckpointTime   = lJobStartTime + CHECKPOINT_INTERVAL; // Saved only if it takes a while
+        iResumePass 		  = 0;
+        resumeDone 			  = null;
+        iCostTableStage 	  = -1;
+        
+        // When stepping back, the image of the window may still be kept - continue where its calculation was left.
+        // After a restart of the application the render job continues from the checkpoint.
+        int iRestoredStage = frameHistory.restore(snapshot, bAntialiasing, ongoingFractalImage);
+        if(iRestoredStage == FrameHistory.DAMAGED)
+        	preparePreview(previous, previousHistogram); // The kept image overwrote the preview only partly
+        
+        if(iRestoredStage > 0)
+        {
+        	setDrawingStage(iRestoredStage);
+        	previewHistogram  = null;
+        	iLastReusedPoints = countCalculatedPoints();
+        }
+        else if(resumeFrom != null && resumeFrom.antialiasing == bAntialiasing && snapshot.isSameView(resumeFrom.snapshot))
+        {
+        	ongoingFractalImage.copy(resumeFrom.image, 0, 0, 0, 0, snapshot.width, snapshot.height);
+        	setDrawingStage(resumeFrom.stage);
+        	iResumePass 	  = resumeFrom.pass;
+        	resumeDone 		  = markResumedCells(resumeFrom.done);
+        	lJobId 			  = resumeFrom.jobId; // The saved columns are still valid
+        	iCheckpointDirtyLeft  = Integer.MAX_VALUE;
+        	iCheckpointDirtyRight = 0;
+        	iLastReusedPoints = countCalculatedPoints();
+        	bResumedImage 	  = true;
+        	
+        	// Without a finished stage the saved image is mostly the preview the job had - show it as such
+        	previewHistogram  = (iDrawingStage == 0) ? histogram : null;
+        }
+        else
         {
-        	completedFractalImage = new int[fractalSettings.width*fractalSettings.height];
+	        boolean bCachePreview = tileCache.assemble(snapshot, ongoingFractalImage) > 0;
+	        iLastReusedPoints = prefetchCache.seed(snapshot, bAntialiasing, ongoingFractalImage, knownPoints, histogram);
+	        if((iLastReusedPoints > 0 || bCachePreview) && previewHistogram == null)
+	        	previewHistogram = histogram; // The reused points are worth showing before the first stage is finished
         }
-          
-        // Init the two buffers
-        for (int j = 0; j < completedFractalImage.length; j++)
+        resumeFrom = null; // Used only by the first render job
+        
+        imageSnapshot = snapshot;
+        
+        // The whole image has changed
+        dirtyRegion.set(0, 0, snapshot.width, snapshot.height);
+    }
+    
+    
+    /** Fills ongoingFractalImage with the preview of the new job made from the image of the previous job
+     *  (or marks all its points as not inspected if the previous image can't be used)
+     * 
+     * @param previous 		    - image of the previous job (null if there was none)
+     * @param previousHistogram - histogram of the previous job
+     */
+    private void preparePreview(IterationBuffer previous, IterationHistogram previousHistogram)
+    {
+        // If the previous job was calculating the same fractal (only moved, zoomed or rotated), 
+        // use its image as a preview until the points are calculated again
+        if(previous != null && imageSnapshot.isSameFractal(snapshot) && imageSnapshot.isInvertible())
         {
-        	completedFractalImage[j] = -1; // -1 mean the point was not inspected
-        	ongoingFractalImage[j]   = -1;
+        	ongoingFractalImage.reproject(previous, imageSnapshot, snapshot, true);
         	
-        }    
+        	// If the previous job was interrupted before it counted anything, keep the histogram of its preview
+        	if(previousHistogram.getCount() > 0 || previewHistogram == null)
+        		previewHistogram = previousHistogram;
+        }
+        else
+        {
+        	ongoingFractalImage.clear(); // Mark all points as not inspected
+        	previewHistogram = null;
+        }
+    }
+    
+    
+    /** Sets the stage at which the calculation of the current job continues
+     */
+    private synchronized void setDrawingStage(int stage)
+    {
+    	iDrawingStage = stage;
+    }
+    
+    
+    /** Calculates again a sample of the points of the image resumed from the checkpoint. If any of them 
+     *  differs (the checkpoint is damaged or was saved by a version calculating differently), the image 
+     *  is used only as a preview and the render job starts from the beginning.
+     */
+    private void validateResumedImage()
+    {
+    	if(bResumedImage == false)
+    		return;
+    	bResumedImage = false;
+    	
+    	// The sample is taken from the points of the first stage which were calculated
+    	// Within the first stage only the points of its finished cells were calculated (they are known points)
+    	PassTask task 	= new PassTask(0, 0, STAGE_PASSES[0][0][2], 1, null);
+    	int gridPoints 	= (snapshot.width/task.step + 1)*(snapshot.height/task.step + 1);
+    	int step 		= task.step*Math.max(1, (int)Math.sqrt((double)gridPoints/VALIDATION_SAMPLES));
+    	boolean bValid 	= true;
+    	
+    	for(int x=0; x<snapshot.width && bValid; x+=step)
+    	{
+    		for(int y=0; y<snapshot.height; y+=step)
+    		{
+    			if(isRestartRequested())
+    				return; // The user has moved on anyway
+    			
+    			int index = x+y*snapshot.width;
+    			int saved = ongoingFractalImage.get(x, y);
+    			if(saved < 0 || (iDrawingStage == 0 && (knownPoints[index >>> 6] & (1L << index)) == 0))
+    				continue;
+    			
+    			int calculated = bAntialiasing ? testPointAntiAliasing(task, x, y) : 
+    											 fractalCalculator.testPoint(snapshot.getRealCoord_X(x, y), snapshot.getRealCoord_Y(x, y), snapshot.iterationsLimmit);
+    			if(calculated != saved)
+    			{
+    				bValid = false;
+    				break;
+    			}
+    		}
+    	}
+    	
+    	if(bValid)
+    		return;
+    	
+    	synchronized(this)
+    	{
+    		if(isRestartRequested())
+    			return;
+    		iDrawingStage = 0;
+    	}
+    	
+    	previewHistogram 	  = histogram;
+    	histogram 			  = new IterationHistogram(snapshot.iterationsLimmit, maxWorkers);
+    	Arrays.fill(knownPoints, 0);
+    	iLastReusedPoints 	  = 0;
+    	iResumePass 		  = 0;
+    	resumeDone 			  = null;
+    	iCostTableStage 	  = -1;
+    	lJobId 				  = newJobId(); // The saved bands must all be replaced
+    	iCheckpointDirtyLeft  = 0;
+    	iCheckpointDirtyRight = snapshot.width;
+    	dirtyRegion.set(0, 0, snapshot.width, snapshot.height);
+    	publishProgress();
+    }
+    
+    
+    /** Marks the points of the finished cells of the resumed pass (iDrawingStage, iResumePass) as known, 
+     *  so the pass doesn't calculate them again
+     * 
+     * @param done - bit for each finished cell of the pass (may be null)
+     * @return - the finished cells, or null if there are none or they don't fit the pass
+     */
+    private long[] markResumedCells(long[] done)
+    {
+    	if(done == null || iDrawingStage >= CALCULATION_STAGE_FINISHED)
+    		return null;
+    	
+    	int[] pass 	 	= STAGE_PASSES[iDrawingStage][iResumePass];
+    	int   step 	 	= pass[2];
+    	int   columns 	= (snapshot.width  - pass[0] + step - 1)/step;
+    	int   rows 	 	= (snapshot.height - pass[1] + step - 1)/step;
+    	int   cellBands = getCellBands(rows);
+    	if(done.length != (columns*cellBands + 63)/64)
+    		return null;
+    	
+    	for(int i=0; i<columns; i++)
+    	{
+    		int x = pass[0] + i*step;
+    		for(int cell=0; cell<cellBands; cell++)
+    		{
+    			int bit = i*cellBands + cell;
+    			if((done[bit >>> 6] & (1L << bit)) == 0)
+    				continue;
+    			
+    			for(int row=cell*BAND_ROWS; row<rows && row<(cell+1)*BAND_ROWS; row++)
+    			{
+    				int index = x + (pass[1] + row*step)*snapshot.width;
+    				knownPoints[index >>> 6] |= 1L << index;
+    			}
+    		}
+    	}
+    	return done;
+    }
+    
+    
+    /** Returns an identifier of a new render job. The identifiers are strictly increasing, and they are based on 
+     *  the time, so they differ from the ones of the checkpoints saved before the application was started.
+     */
+    private long newJobId()
+    {
+    	return Math.max(System.currentTimeMillis()*1024, lJobId + 1);
+    }
+    
+    
+    /** Counts the points of ongoingFractalImage calculated before the current stage, pass and column 
+     *  (iDrawingStage and iResumePass; of the pass iResumePass only the known points of its finished cells) into the histogram
+     * 
+     * @return - number of counted points
+     */
+    private int countCalculatedPoints()
+    {
+    	int iCount = 0;
+    	
+    	for(int stage=0; stage<=iDrawingStage && stage<CALCULATION_STAGE_FINISHED; stage++)
+    	{
+    		int[][] passes = STAGE_PASSES[stage];
+    		for(int i=0; i<passes.length; i++)
+    		{
+    			// Only the passes before iResumePass are done in the current stage
+    			boolean bResumed = false;
+    			if(stage == iDrawingStage)
+    			{
+    				if(i > iResumePass)
+    					break;
+    				bResumed = (i == iResumePass);
+    			}
+    			
+    			int step = passes[i][2];
+    			for(int x=passes[i][0]; x<snapshot.width; x+=step)
+    			{
+    				for(int y=passes[i][1]; y<snapshot.height; y+=step)
+    				{
+    					int index = x+y*snapshot.width;
+    					if(bResumed && (knownPoints[index >>> 6] & (1L << index)) == 0)
+    						continue;
+    					
+    					int iterations = ongoingFractalImage.get(x, y);
+    					if(iterations >= 0)
+    					{
+    						histogram.add(0, iterations);
+    						iCount++;
+    					}
+    				}
+    			}
+    		}
+    	}
+    	return iCount;
     }
 	
 }
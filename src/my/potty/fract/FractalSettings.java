@@ -2,6 +2,7 @@ package my.potty.fract;
 
 
 import my.potty.fract.FractalCalculator.FractalTypes;
+import my.potty.tools.SimpleTransform;
 
 /** Class that takes care of the fractal settings.
  * 
@@ -25,7 +26,7 @@ public class FractalSettings
 	public static final int    INITIAL_CLR_PER = 1;
 	
 	/**Color options for drawing the fractals*/
-	public static enum ColorMode{COLOR, COLOR_INVERTED, BW;}
+	public static enum ColorMode{COLOR, COLOR_INVERTED, BW, HISTOGRAM;}
 	
 	
 	/**
@@ -72,7 +73,11 @@ public class FractalSettings
 		dAspectRatio = (double)width/height; // Calculate the aspect ratio
 		
 		try {
-			drawingAreaCoords = new WindowCoords(width, height); 
+			// Reset keeps the coordinates, so their buffer is reused
+			if(drawingAreaCoords == null)
+				drawingAreaCoords = new WindowCoords(width, height); 
+			else
+				drawingAreaCoords.setDimensions(width, height);
 			drawingAreaCoords.setDimensions(-2*dAspectRatio, -2, // lower left corner
 									        2*dAspectRatio,  2  );// upper right corner
 		} catch (Exception e) {
@@ -91,6 +96,17 @@ public class FractalSettings
 	}
 
 	
+	/** Returns an immutable copy of the settings needed for calculating the fractal image.
+	 *  The drawing thread works only with such copies, so it never sees half-made changes.
+	 * 
+	 * @return - snapshot of the current settings
+	 */
+	public synchronized FractalSnapshot getSnapshot()
+	{
+		return new FractalSnapshot(this, drawingAreaCoords);
+	}
+	
+	
 	public synchronized double getRealCoord_X(int x, int y)
 	{
 		return drawingAreaCoords.getCartCoord_X(x, y); 
@@ -222,6 +238,18 @@ public class FractalSettings
 		drawingAreaCoords.rotate(degrees);
 	}
 	
+	/** Applies the transformation done by the user's gesture in one step, so that
+	 *  a snapshot never sees the drawing area half-transformed.
+	 * 
+	 * @param transform - scale, rotation and translation (in window coordinates) to be applied
+	 */
+	public synchronized void transform(SimpleTransform transform)
+	{
+		drawingAreaCoords.scale(transform.mScale);
+		drawingAreaCoords.rotate(transform.mTheta);
+		drawingAreaCoords.translate(transform.mTranslateX, transform.mTranslateY);
+	}
+	
 	
 	/** Returns the maximum number of iteration for each point
 	 * 
@@ -257,6 +285,44 @@ public class FractalSettings
 
 	
 	
+	/** Returns to the fractal and the window of a snapshot taken earlier. 
+	 *  The color settings and the orbit are not changed.
+	 * 
+	 * @param snapshot - the snapshot (must have the size of the drawing area)
+	 */
+	public synchronized void restore(FractalSnapshot snapshot)
+	{
+		iterationsLimmit   = snapshot.iterationsLimmit;
+		fractalType 	   = snapshot.fractalType;
+		dComplexConstantRe = snapshot.complexConstantRe;
+		dComplexConstantIm = snapshot.complexConstantIm;
+		snapshot.copyWindowTo(drawingAreaCoords);
+	}
+	
+	
+	/** Changes the size of the drawing area, keeping the center of the window and its scale.
+	 *  The pixels of the new window lie on the grid of the old one, so the calculated points 
+	 *  of the old window can be reused.
+	 * 
+	 * @param w - new width of the drawing area
+	 * @param h - new height of the drawing area
+	 */
+	public synchronized void resize(int w, int h)
+	{
+		FractalSnapshot old = getSnapshot();
+		
+		width  = w;
+		height = h;
+		dAspectRatio = (double)width/height;
+		try {
+			drawingAreaCoords.setDimensions(width, height);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		old.copyWindowTo(drawingAreaCoords, (old.width - width)/2, (old.height - height)/2);
+	}
+	
+	
 	/** Resets to initial view of the Mandelbrot fractal
 	 * 
 	 * @param w -width of the drawing area
@@ -0,0 +1,403 @@
+package my.potty.fract;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import my.potty.fract.FractalCalculator.FractalTypes;
+
+/** Immutable copy of the FractalSettings needed for calculating one fractal image.
+ *
+ *  A snapshot is taken each time a new render job is requested, so the drawing thread
+ *  never sees the settings while the UI thread is changing them. All fields are final and
+ *  can be read without any locking.
+ *
+ *  The mapping from window to complex coordinates is affine (translate, scale and rotate
+ *  are the only operations done on the drawing area), so instead of copying the coordinates
+ *  of each pixel we keep the coordinates of pixel (0,0) and the distance between two
+ *  neighboring pixels in both directions.
+ *
+ * @author Pottry
+ *
+ */
+public final class FractalSnapshot
+{
+	/**
+	 * Dimensions of the window (drawing area)
+	 */
+	public final int width, height;
+
+	/**
+	 * The maximum number of iterations for a point
+	 */
+	public final int iterationsLimmit;
+
+	public final FractalTypes fractalType;
+	public final double       complexConstantRe; // C used by Julia sets - real part
+	public final double       complexConstantIm; // C used by Julia sets - imaginary part
+
+	private final double originX, originY; // Complex coordinates of pixel (0,0)
+	private final double stepXx,  stepXy;  // Change of the complex coordinates when moving one pixel to the right
+	private final double stepYx,  stepYy;  // Change of the complex coordinates when moving one pixel down
+
+	/** How far (in pixels) the pixels of two snapshots may be apart and still be considered the same */
+	private static final double ALIGNMENT_TOLERANCE = 1.0/64;
+
+
+
+	/** Creates a snapshot of the supplied settings. Should be called only by FractalSettings
+	 *  while holding its lock.
+	 *
+	 * @param settings - the settings to be copied
+	 * @param coords   - the coordinates of the drawing area used by the settings
+	 */
+	FractalSnapshot(FractalSettings settings, WindowCoords coords)
+	{
+		width  			  = settings.width;
+		height 			  = settings.height;
+		iterationsLimmit  = settings.iterationsLimmit;
+		fractalType 	  = settings.getFractalType();
+		complexConstantRe = settings.getImaginaryConstantRe();
+		complexConstantIm = settings.getImaginaryConstantIm();
+
+		originX = coords.getCartCoord_X(0, 0);
+		originY = coords.getCartCoord_Y(0, 0);
+
+		// Use the most distant pixels, so that rounding errors are spread evenly
+		if(width > 1)
+		{
+			stepXx = (coords.getCartCoord_X(width-1, 0) - originX)/(width-1);
+			stepXy = (coords.getCartCoord_Y(width-1, 0) - originY)/(width-1);
+		}
+		else
+		{
+			stepXx = stepXy = 0;
+		}
+		if(height > 1)
+		{
+			stepYx = (coords.getCartCoord_X(0, height-1) - originX)/(height-1);
+			stepYy = (coords.getCartCoord_Y(0, height-1) - originY)/(height-1);
+		}
+		else
+		{
+			stepYx = stepYy = 0;
+		}
+	}
+
+
+	/** Creates a snapshot of the same fractal seen through another window
+	 */
+	private FractalSnapshot(FractalSnapshot source, int width, int height,
+							double originX, double originY,
+							double stepXx,  double stepXy,
+							double stepYx,  double stepYy)
+	{
+		this.width  			= width;
+		this.height 			= height;
+		this.iterationsLimmit 	= source.iterationsLimmit;
+		this.fractalType 		= source.fractalType;
+		this.complexConstantRe 	= source.complexConstantRe;
+		this.complexConstantIm 	= source.complexConstantIm;
+		this.originX = originX;
+		this.originY = originY;
+		this.stepXx  = stepXx;
+		this.stepXy  = stepXy;
+		this.stepYx  = stepYx;
+		this.stepYy  = stepYy;
+	}
+
+
+	/** Creates a snapshot from its fields
+	 */
+	private FractalSnapshot(int width, int height, int iterationsLimmit, FractalTypes fractalType,
+							double complexConstantRe, double complexConstantIm,
+							double originX, double originY,
+							double stepXx,  double stepXy,
+							double stepYx,  double stepYy)
+	{
+		this.width  			= width;
+		this.height 			= height;
+		this.iterationsLimmit 	= iterationsLimmit;
+		this.fractalType 		= fractalType;
+		this.complexConstantRe 	= complexConstantRe;
+		this.complexConstantIm 	= complexConstantIm;
+		this.originX = originX;
+		this.originY = originY;
+		this.stepXx  = stepXx;
+		this.stepXy  = stepXy;
+		this.stepYx  = stepYx;
+		this.stepYy  = stepYy;
+	}
+
+
+	/** Writes the snapshot, so that it can be read by readFrom()
+	 *
+	 * @param out - where to write
+	 * @throws IOException
+	 */
+	public void writeTo(DataOutput out) throws IOException
+	{
+		out.writeInt(width);
+		out.writeInt(height);
+		out.writeInt(iterationsLimmit);
+		out.writeUTF(fractalType.name());
+		out.writeDouble(complexConstantRe);
+		out.writeDouble(complexConstantIm);
+		out.writeDouble(originX);
+		out.writeDouble(originY);
+		out.writeDouble(stepXx);
+		out.writeDouble(stepXy);
+		out.writeDouble(stepYx);
+		out.writeDouble(stepYy);
+	}
+
+
+	/** Reads a snapshot written by writeTo()
+	 *
+	 * @param in - where to read from
+	 * @return - the snapshot
+	 * @throws IOException - if the snapshot can't be read or it is not valid
+	 */
+	public static FractalSnapshot readFrom(DataInput in) throws IOException
+	{
+		int width  			 = in.readInt();
+		int height 			 = in.readInt();
+		int iterationsLimmit = in.readInt();
+		FractalTypes fractalType;
+		try
+		{
+			fractalType = FractalTypes.valueOf(in.readUTF());
+		}
+		catch(IllegalArgumentException e)
+		{
+			throw new IOException("Unknown fractal type"); //$NON-NLS-1$
+		}
+		if(width <= 0 || height <= 0 || iterationsLimmit <= 0)
+			throw new IOException("Invalid snapshot"); //$NON-NLS-1$
+
+		return new FractalSnapshot(width, height, iterationsLimmit, fractalType,
+								   in.readDouble(), in.readDouble(),
+								   in.readDouble(), in.readDouble(),
+								   in.readDouble(), in.readDouble(),
+								   in.readDouble(), in.readDouble());
+	}
+
+
+	/** Returns a window with the same pixel grid, moved by a whole number of pixels and resized.
+	 *
+	 * @param x 	 - x-coordinate (in this window) of the pixel (0,0) of the new window
+	 * @param y 	 - y-coordinate (in this window) of the pixel (0,0) of the new window
+	 * @param width  - width of the new window
+	 * @param height - height of the new window
+	 * @return - the new window
+	 */
+	public FractalSnapshot getShifted(int x, int y, int width, int height)
+	{
+		return new FractalSnapshot(this, width, height,
+								   getRealCoord_X(x, y), getRealCoord_Y(x, y),
+								   stepXx, stepXy, stepYx, stepYy);
+	}
+
+
+	/** Returns a window with the same size and center, zoomed in by the supplied factor
+	 *
+	 * @param factor - how many times the new window is zoomed in
+	 * @return - the new window
+	 */
+	public FractalSnapshot getZoomed(double factor)
+	{
+		double centerX = (width-1)/2.0;
+		double centerY = (height-1)/2.0;
+		return new FractalSnapshot(this, width, height,
+								   getRealCoord_X(centerX, centerY) - (centerX*stepXx + centerY*stepYx)/factor,
+								   getRealCoord_Y(centerX, centerY) - (centerX*stepXy + centerY*stepYy)/factor,
+								   stepXx/factor, stepXy/factor, stepYx/factor, stepYy/factor);
+	}
+
+
+	/** Checks if the pixels of both snapshots lie on the same grid of points of the same fractal,
+	 *  so the values calculated for one can be used for the other.
+	 *
+	 * @param other - the snapshot to compare with
+	 * @return true - each pixel of this snapshot is also a pixel of the other one (if they overlap)
+	 */
+	public boolean isAlignedWith(FractalSnapshot other)
+	{
+		if(isSameFractal(other) == false)
+			return false;
+
+		// The steps must be so close, that the difference doesn't add up to the tolerance over the whole window
+		double tolerance = getPixelSize()*ALIGNMENT_TOLERANCE/Math.max(Math.max(width, height), 1);
+		if(Math.abs(stepXx - other.stepXx) > tolerance || Math.abs(stepXy - other.stepXy) > tolerance ||
+		   Math.abs(stepYx - other.stepYx) > tolerance || Math.abs(stepYy - other.stepYy) > tolerance)
+			return false;
+
+		double x = other.getPixel_X(originX, originY);
+		double y = other.getPixel_Y(originX, originY);
+		return Math.abs(x - Math.rint(x)) < ALIGNMENT_TOLERANCE && Math.abs(y - Math.rint(y)) < ALIGNMENT_TOLERANCE;
+	}
+
+
+	/** Checks if both snapshots show exactly the same image: the same fractal in the same window
+	 *
+	 * @param other - the snapshot to compare with
+	 * @return true - each pixel has the same value in both snapshots
+	 */
+	public boolean isSameView(FractalSnapshot other)
+	{
+		return width == other.width && height == other.height && isAlignedWith(other) &&
+			   getOffsetIn_X(other) == 0 && getOffsetIn_Y(other) == 0;
+	}
+
+
+	/** Moves the drawing area to the window of this snapshot. Should be called only by
+	 *  FractalSettings while holding its lock.
+	 *
+	 * @param coords - the coordinates of the drawing area (must have the size of the snapshot)
+	 */
+	void copyWindowTo(WindowCoords coords)
+	{
+		coords.setAffine(originX, originY, stepXx, stepXy, stepYx, stepYy);
+	}
+
+
+	/** Moves the drawing area to the window of this snapshot shifted by whole pixels, so that
+	 *  the pixels of both windows lie on the same grid. Should be called only by FractalSettings
+	 *  while holding its lock.
+	 *
+	 * @param coords  - the coordinates of the drawing area (of any size)
+	 * @param offsetX - pixel of this snapshot which becomes pixel (0,0) of the drawing area (x-coordinate)
+	 * @param offsetY - pixel of this snapshot which becomes pixel (0,0) of the drawing area (y-coordinate)
+	 */
+	void copyWindowTo(WindowCoords coords, int offsetX, int offsetY)
+	{
+		coords.setAffine(originX + offsetX*stepXx + offsetY*stepYx,
+						 originY + offsetX*stepXy + offsetY*stepYy,
+						 stepXx, stepXy, stepYx, stepYy);
+	}
+
+
+	/** Returns the x-coordinate of pixel (0,0) of this snapshot in an aligned snapshot
+	 *
+	 * @param other - snapshot for which isAlignedWith() returned true
+	 */
+	public int getOffsetIn_X(FractalSnapshot other)
+	{
+		return (int)Math.rint(other.getPixel_X(originX, originY));
+	}
+
+	/** Returns the y-coordinate of pixel (0,0) of this snapshot in an aligned snapshot
+	 *
+	 * @param other - snapshot for which isAlignedWith() returned true
+	 */
+	public int getOffsetIn_Y(FractalSnapshot other)
+	{
+		return (int)Math.rint(other.getPixel_Y(originX, originY));
+	}
+
+
+	/** Returns the distance between two neighboring pixels in the complex plane
+	 */
+	public double getPixelSize()
+	{
+		return Math.hypot(stepXx, stepXy);
+	}
+
+
+	/** Returns the real coordinates(X-part) of a pixel.
+	 *
+	 * @param x - x-coordinate of the pixel that we are interested in
+	 * @param y - y-coordinate of the pixel that we are interested in
+	 * @return - real number specifying the location of the pixel in the Cartesian plane
+	 */
+	public double getRealCoord_X(int x, int y)
+	{
+		return originX + x*stepXx + y*stepYx;
+	}
+
+	/** Returns the real coordinates(Y-part) of a pixel.
+	 *
+	 * @param x - x-coordinate of the pixel that we are interested in
+	 * @param y - y-coordinate of the pixel that we are interested in
+	 * @return - real number specifying the location of the pixel in the Cartesian plane
+	 */
+	public double getRealCoord_Y(int x, int y)
+	{
+		return originY + x*stepXy + y*stepYy;
+	}
+
+	/** Returns the real coordinates(X-part) of a point between the pixels.
+	 *
+	 * @param x - x-coordinate in window coordinates (not necessarily whole)
+	 * @param y - y-coordinate in window coordinates (not necessarily whole)
+	 * @return - real number specifying the location of the point in the Cartesian plane
+	 */
+	public double getRealCoord_X(double x, double y)
+	{
+		return originX + x*stepXx + y*stepYx;
+	}
+
+	/** Returns the real coordinates(Y-part) of a point between the pixels.
+	 *
+	 * @param x - x-coordinate in window coordinates (not necessarily whole)
+	 * @param y - y-coordinate in window coordinates (not necessarily whole)
+	 * @return - real number specifying the location of the point in the Cartesian plane
+	 */
+	public double getRealCoord_Y(double x, double y)
+	{
+		return originY + x*stepXy + y*stepYy;
+	}
+
+	/** Returns the x-coordinate of the pixel at a point of the complex plane (inverse of getRealCoord_X/Y).
+	 *
+	 * @param re - real part of the point
+	 * @param im - imaginary part of the point
+	 * @return - x-coordinate of the pixel (not rounded, may be outside of the window)
+	 */
+	public double getPixel_X(double re, double im)
+	{
+		return ((re-originX)*stepYy - (im-originY)*stepYx) / (stepXx*stepYy - stepYx*stepXy);
+	}
+
+	/** Returns the y-coordinate of the pixel at a point of the complex plane (inverse of getRealCoord_X/Y).
+	 *
+	 * @param re - real part of the point
+	 * @param im - imaginary part of the point
+	 * @return - y-coordinate of the pixel (not rounded, may be outside of the window)
+	 */
+	public double getPixel_Y(double re, double im)
+	{
+		return ((im-originY)*stepXx - (re-originX)*stepXy) / (stepXx*stepYy - stepYx*stepXy);
+	}
+
+	/** Checks if the pixel mapping can be inverted (false only for degenerate windows)
+	 */
+	public boolean isInvertible()
+	{
+		return stepXx*stepYy - stepYx*stepXy != 0;
+	}
+
+	/** Checks if both snapshots describe the same fractal with the same number of iterations
+	 *  for each point of the complex plane. The visible part of the plane may differ.
+	 *
+	 * @param other - the snapshot to compare with
+	 * @return true - a point has the same value in both snapshots
+	 */
+	public boolean isSameFractal(FractalSnapshot other)
+	{
+		return fractalType 		 == other.fractalType 		&&
+			   iterationsLimmit  == other.iterationsLimmit  &&
+			   complexConstantRe == other.complexConstantRe &&
+			   complexConstantIm == other.complexConstantIm;
+	}
+
+	public double getDistanceBetweenPixels_X()
+	{
+		return -stepXx;
+	}
+
+	public double getDistanceBetweenPixels_Y()
+	{
+		return -stepYy;
+	}
+}
@@ -25,6 +25,7 @@ import android.graphics.Matrix;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.Paint;
 import android.graphics.PointF;
+import android.graphics.Rect;
 import android.location.SettingInjectorService;
 import android.net.Uri;
 import android.os.Environment;
@@ -37,6 +38,7 @@ import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
+import android.view.VelocityTracker;
 import android.view.View;
 import android.view.Window;
 import android.view.WindowManager;
@@ -52,20 +54,22 @@ public class FractalSurfaceView extends SurfaceView implements Runnable
 {           
     private static final int RANGE_CUSTOM_FRACTAL_SLIDERS = 1000;
     protected static enum AppStatus{MOTION, 	// User is touching the screen
+    								FLING,		// User has lifted the finger, but the fractal keeps moving
     								NO_MOTION}  // User is not touching the screen             
     
+    private static final float FLING_MIN_VELOCITY  = 300;	 // Slower moves (in pixels/s) end without a fling
+    private static final float FLING_STOP_VELOCITY = 20;	 // The fling stops when it slows down to this speed (in pixels/s)
+    private static final float FLING_TIME_CONSTANT = 0.325f; // How fast the fling slows down (in s) - the speed drops e times in this time
+    
     private Context context;
     private Thread  drawingThread; 
-    private boolean isThreadRunning = false;
+    private final DisplayScheduler displayScheduler = new DisplayScheduler(); // Wakes up the drawing thread when there is something to draw
 
     protected FractalSettings fractalSettings; // Defines which part of the fractal is visible on the screen
     protected FractalDrawer   fractalDrawer;   // Draws a fractal onto a bitmap using the current coordinates
+    protected PreviewRenderer previewRenderer; // Fills the parts of the display uncovered during a gesture
     
-    private Bitmap      offScreenBitmap; // Bitmap on which we are drawing the fractal and the orbit
-    private Canvas      offScreenCanvas; 
-    
-    private Bitmap      onScreenBitmap; // Buffer Bitmap holding the final picture which is to be drawn
-    private Canvas      onScreenCanvas;// This Buffer is needed in order to be able to save the visible image 
+    private Bitmap      offScreenBitmap; // Bitmap on which we are drawing the fractal
     
     protected Matrix	offscreenMatrix = new Matrix(); // Matrix used for the rotation of the Offscreen surface
     
@@ -94,12 +98,26 @@ public class FractalSurfaceView extends SurfaceView implements Runnable
     protected float mTranslateYFractal = 0;
     
     private Matrix  emptyMatrix = new Matrix(); // Matrix used for different drawings
+    private Rect    updatedRegion = new Rect(); // Region of the offscreen bitmap updated by the last call to drawFractal()
+    private Rect    surfaceDirtyRegion = new Rect(); // Region of the surface to be redrawn (lockCanvas() may enlarge it)
+    private Matrix  previewMatrix = new Matrix(); // Transformation for which the last preview was requested
+    private Matrix  inverseMatrix = new Matrix(); // Maps the display to the offscreen bitmap during a gesture
+    private volatile boolean bDisplayInvalid = true; // The display must be redrawn even if the fractal image has not changed
 
   
     private  boolean   bIsProcessingIndicatorShown = false; // holds the last state of the processing indicator shown in the middle of the screen
     private  boolean   bUserIsTouchingTheScreen = false;
     private  boolean   bDiscardUserInput = false; // If we should not discard any user input
     
+    private VelocityTracker velocityTracker; 	// Measures the speed of the fingers for the fling
+    private long  lFlingStartTime; 				// System.nanoTime() when the fling started
+    private float fFlingVelocityX, fFlingVelocityY; 	// Initial speed of the fling (in pixels/s)
+    private float fFlingStartX, fFlingStartY;   		// Translation of the fractal when the fling started
+    private float fFlingDuration;				// How long the fling takes (in s)
+    
+    private final long    lCreateTime = System.nanoTime(); // When the view was created - the start of the application
+    private volatile long lFirstFrameLatency = -1; 		   // How long (in ns) it took to show the first pixels of the fractal (-1 until shown)
+    
     /** 
      * @param context
      */
@@ -124,41 +142,56 @@ public class FractalSurfaceView extends SurfaceView implements Runnable
         if(w == 0 || h==0)
             return;
         
-        fractalSettings = new FractalSettings(w,h); // Init the fractalSettings
-        ((ActivityMain)context).updateControls(fractalSettings);
-        
-        fractalDrawer   = new FractalDrawer(fractalSettings); // Start the FractalDrawer
-        
-        offScreenBitmap   = Bitmap.createBitmap(fractalSettings.width,   
-                								fractalSettings.height, 
-                								Bitmap.Config.ARGB_8888);
-        offScreenCanvas = new Canvas(offScreenBitmap); 
+        // The drawer lives as long as the view - after a resize it continues with the same window
+        if(fractalDrawer != null)
+        {
+        	if(w != fractalSettings.width || h != fractalSettings.height)
+        	{
+        		fractalDrawer.resize(w, h); // The display thread takes a bitmap of the new size
+        		previewRenderer.clear(); // Made for the old size
+        	}
+        	invalidateDisplay();
+        	return;
+        }
         
+        fractalSettings = new FractalSettings(w,h); // Init the fractalSettings
         
-       
+        // Start the FractalDrawer. It continues the render job saved before the application was stopped (if any).
+        fractalDrawer   = new FractalDrawer(fractalSettings, context.getCacheDir(), context.getFilesDir());
+        fractalDrawer.setRenderPolicy(new PowerBudgetPolicy(), new BatterySignals(context));
+        fractalDrawer.setOnChangeListener(new FractalDrawer.OnChangeListener() 
+        {
+			@Override
+			public void onDrawerChanged(FractalDrawer drawer) 
+			{
+				displayScheduler.requestFrame(); // New data to draw or the calculation status has changed
+			}
+			
+			@Override
+			public void onSettingsRestored(FractalDrawer drawer)
+			{
+				((ActivityMain)context).updateControls(fractalSettings); // Now showing the window of the checkpoint
+			}
+		});
+        ((ActivityMain)context).updateControls(fractalSettings); // After the listener is set, so a restored window is not missed
+        previewRenderer = new PreviewRenderer(displayScheduler);
         
-        onScreenBitmap   = Bitmap.createBitmap(fractalSettings.width,   
-                								fractalSettings.height, 
-                								Bitmap.Config.ARGB_8888);
-        onScreenCanvas = new Canvas(onScreenBitmap);    
+        invalidateDisplay();
     }
     
    
     
     @Override
     /**
-     *  Drawing of the SurfaceView is done here
+     *  Drawing of the SurfaceView is done here. The thread sleeps until a frame is requested
+     *  by the FractalDrawer (new data), by the touch events (gesture in progress) or by a 
+     *  change of the settings.
      */
     public void run() 
     {
-        while(isThreadRunning)
+        while(displayScheduler.awaitFrame())
         {
-        	doDrawing();
-          
-	        try 
-	        {
-	            Thread.sleep(40);  // Sleep the thread for some time before drawing again...
-	        } catch (InterruptedException e) {e.printStackTrace();}
+        	displayScheduler.frameDone(doDrawing());
         } //while(running)
     } // run()
     
@@ -168,11 +201,29 @@ public class FractalSurfaceView extends SurfaceView implements Runnable
     /**
      * Takes care of drawing onto the SurfaceView. The function is called by the drawing thread.
      * 
+     * @return - true if anything was drawn onto the display or the calculation status bar was changed
      */
-    private void doDrawing() 
+    private boolean doDrawing() 
     {	
-    	if(fractalDrawer == null || offScreenCanvas == null || fractalSettings == null)
-    		return;
+    	boolean bDrawn = false;
+    	
+    	if(fractalDrawer == null || fractalSettings == null)
+    		return false;
+    	
+    	// The offscreen bitmap is used only by this thread - it is replaced here when the drawing area is resized
+    	int width, height;
+    	synchronized(fractalSettings)
+    	{
+    		width  = fractalSettings.width;
+    		height = fractalSettings.height;
+    	}
+    	if(offScreenBitmap == null || offScreenBitmap.getWidth() != width || offScreenBitmap.getHeight() != height)
+    	{
+    		BufferPool pool = BufferPool.getInstance();
+    		pool.release(offScreenBitmap, BufferPool.Subsystem.DISPLAY);
+    		offScreenBitmap = pool.leaseBitmap(width, height, BufferPool.Subsystem.DISPLAY);
+    		bDisplayInvalid = true;
+    	}
     	
     	
     	switch(getAppStatus())
@@ -181,7 +232,20 @@ public class FractalSurfaceView extends SurfaceView implements Runnable
     		bUserIsTouchingTheScreen = true;
     		
     		// User is dragging/scaling -  blit the offscreen surface using the current transformation
-    		drawOffscreenBitmapOnDisplay(fractalTransformation.getMatrixCenterAnchored(fractalSettings.width, fractalSettings.height));
+    		Matrix mtrx = fractalTransformation.getMatrixCenterAnchored(fractalSettings.width, fractalSettings.height);
+    		requestPreview(mtrx);
+    		bDrawn = drawOffscreenBitmapOnDisplay(mtrx, false, null);
+    		break;
+    		
+    		
+    	case FLING:
+    		// Move the fractal further - the gesture ends when the fling stops
+    		if(updateFling())
+    			displayScheduler.requestFrame(); // Next step of the animation
+    		
+    		Matrix flingMtrx = fractalTransformation.getMatrixCenterAnchored(fractalSettings.width, fractalSettings.height);
+    		requestPreview(flingMtrx);
+    		bDrawn = drawOffscreenBitmapOnDisplay(flingMtrx, false, null);
     		break;
     		
     		
@@ -191,12 +255,20 @@ public class FractalSurfaceView extends SurfaceView implements Runnable
     		if(bUserIsTouchingTheScreen == true)
     		{    			
     			bUserIsTouchingTheScreen = false;
+    			previewRenderer.cancel(); // The preview stays visible until the new data is drawn
+    			previewMatrix.reset();
+    			
+    			// Moving by whole pixels keeps the points on the same grid, so the already calculated ones can be reused
+    			if(isTranslationOnly(fractalTransformation))
+    			{
+    				fractalTransformation.mTranslateX = Math.round(fractalTransformation.mTranslateX);
+    				fractalTransformation.mTranslateY = Math.round(fractalTransformation.mTranslateY);
+    			}
+    			
     			// We will update the coordinates of the fractal 
     			// Start of slow processing...
     			setDiscardUserInput(true);
-    			fractalSettings.scale(fractalTransformation.mScale);
-        	    fractalSettings.rotate(fractalTransformation.mTheta);
-        	    fractalSettings.translate(fractalTransformation.mTranslateX, fractalTransformation.mTranslateY);   
+    			fractalSettings.transform(fractalTransformation);
         	    // ..End of slow processing
         	    
         	   
@@ -205,72 +277,227 @@ public class FractalSurfaceView extends SurfaceView implements Runnable
         	    
         	    // Recalculate the fractal image using the new fractalSettings
         	    fractalDrawer.resetProcessing(); 
+        	    
+        	    // The orbit was hidden during the motion
+        	    bDisplayInvalid = true;
     		}
     		
     	
     		// We have data ready to be drawn...
-    		if( fractalDrawer.drawFractal(offScreenCanvas, fractalSettings)>0 )
+    		if( fractalDrawer.drawFractal(offScreenBitmap, updatedRegion, fractalSettings)>0 )
     		{   
     			fractalTransformation.reset();
+    			previewRenderer.clear();
     			setDiscardUserInput(false);
     			
-    			// Draw the orbit onto the offscreen surface
-    			OrbitDrawer.draw(fractalSettings, offScreenCanvas);
+    			// Blit only if something has changed since the last time
+    			if(bDisplayInvalid)
+    			{
+    				bDisplayInvalid = false;
+    				bDrawn = drawOffscreenBitmapOnDisplay(emptyMatrix, true, null);
+    			}
+    			else if(updatedRegion.isEmpty() == false)
+    			{
+    				bDrawn = drawOffscreenBitmapOnDisplay(emptyMatrix, true, updatedRegion);
+    			}
     			
-    			drawOffscreenBitmapOnDisplay(emptyMatrix);
+    			if(bDrawn && lFirstFrameLatency < 0)
+    				lFirstFrameLatency = System.nanoTime() - lCreateTime; // See getFirstFrameLatency()
     		}
-    		// No data yet - draw old
-    		else
+    		// No data yet - draw old (only if the display doesn't show it already)
+    		else if(bDisplayInvalid)
     		{
-    			drawOffscreenBitmapOnDisplay(fractalTransformation.getMatrixCenterAnchored(fractalSettings.width, fractalSettings.height));
+    			bDisplayInvalid = false;
+    			bDrawn = drawOffscreenBitmapOnDisplay(fractalTransformation.getMatrixCenterAnchored(fractalSettings.width, fractalSettings.height), true, null);
     		}
     		break;
     	}
     	
     	
-    	vManageCalculationStatusBar();
+    	return vManageCalculationStatusBar() || bDrawn;
     }
 
 
+    /** Starts the fling if the fingers were moving fast enough when they were lifted. 
+     *  Otherwise the gesture ends right away. Only moves (without scaling and rotation) are flung.
+     */
+    private void startFling()
+    {
+    	velocityTracker.computeCurrentVelocity(1000); // pixels per second
+    	float fVelocityX = velocityTracker.getXVelocity();
+    	float fVelocityY = velocityTracker.getYVelocity();
+    	float fSpeed 	 = (float)Math.hypot(fVelocityX, fVelocityY);
+    	
+    	if(fSpeed < FLING_MIN_VELOCITY || isTranslationOnly(fractalTransformation) == false)
+    	{
+    		setAppStatus(AppStatus.NO_MOTION);
+    		return;
+    	}
+    	
+    	fFlingVelocityX = fVelocityX;
+    	fFlingVelocityY = fVelocityY;
+    	fFlingStartX 	= fractalTransformation.mTranslateX;
+    	fFlingStartY 	= fractalTransformation.mTranslateY;
+    	fFlingDuration  = FLING_TIME_CONSTANT*(float)Math.log(fSpeed/FLING_STOP_VELOCITY);
+    	lFlingStartTime = System.nanoTime();
+    	
+    	// The fling always ends at the same place - let the drawer calculate it in advance
+    	fractalDrawer.setFlingHint(getFlingTranslate_X(fFlingDuration), getFlingTranslate_Y(fFlingDuration));
+    	setAppStatus(AppStatus.FLING);
+    }
+    
+    
+    /** Moves the fractal to the position of the fling at the current time
+     * 
+     * @return - false if the fling has ended
+     */
+    private boolean updateFling()
+    {
+    	float fTime = (System.nanoTime() - lFlingStartTime)/1e9f;
+    	
+    	if(fTime >= fFlingDuration)
+    	{
+    		fractalTransformation.mTranslateX = getFlingTranslate_X(fFlingDuration);
+    		fractalTransformation.mTranslateY = getFlingTranslate_Y(fFlingDuration);
+    		setAppStatus(AppStatus.NO_MOTION);
+    		displayScheduler.requestFrame(); // The end of the gesture is processed in the next frame
+    		return false;
+    	}
+    	
+    	fractalTransformation.mTranslateX = getFlingTranslate_X(fTime);
+    	fractalTransformation.mTranslateY = getFlingTranslate_Y(fTime);
+    	return true;
+    }
+    
+    
+    // The speed drops exponentially, so the distance is v*T*(1-exp(-t/T))
+    private float getFlingTranslate_X(float fTime)
+    {
+    	return fFlingStartX + fFlingVelocityX*FLING_TIME_CONSTANT*(1 - (float)Math.exp(-fTime/FLING_TIME_CONSTANT));
+    }
+    
+    private float getFlingTranslate_Y(float fTime)
+    {
+    	return fFlingStartY + fFlingVelocityY*FLING_TIME_CONSTANT*(1 - (float)Math.exp(-fTime/FLING_TIME_CONSTANT));
+    }
+    
+    
+    /** Checks if the transformation only moves the fractal
+     */
+    private static boolean isTranslationOnly(SimpleTransform transform)
+    {
+    	return transform.mScale == 1 && transform.mTheta == 0;
+    }
+    
+    
+    /** Requests a preview of the parts of the display uncovered by the gesture, unless
+     *  it has already been requested for the same transformation.
+     *  
+     * @param mtrx - the transformation of the offscreen bitmap
+     */
+    private void requestPreview(Matrix mtrx)
+    {
+    	if(mtrx.equals(previewMatrix) || mtrx.invert(inverseMatrix) == false)
+    		return;
+    	
+    	previewMatrix.set(mtrx);
+    	previewRenderer.request(fractalSettings.getSnapshot(), inverseMatrix, 
+    							fractalSettings.getColorMode(), fractalSettings.getColorPeriodicity());
+    }
+    
+    
     /**
      *  Show or hide the status bar informing us about ongoing calculations.
+     *  
+     *  @return - true if the status bar was changed
      */
-	private void vManageCalculationStatusBar() {
+	private boolean vManageCalculationStatusBar() {
 		if(bIsProcessingIndicatorShown != fractalDrawer.isCurrentlyProcessing())
     	{
     		bIsProcessingIndicatorShown = fractalDrawer.isCurrentlyProcessing();
     		((ActivityMain)context).setCalculationInProgress(bIsProcessingIndicatorShown);
+    		return true;
     	}
+		return false;
 	}
 
 
-	/** Draws the offscreen bitmap onto the display
-	 * @param mtrx  - Affine transformation to be used when drawing 
+	/** Draws the offscreen bitmap directly onto the display
+	 * @param mtrx  	- Affine transformation to be used when drawing 
+	 * @param withOrbit - if the orbit should be drawn over the fractal
+	 * @param dirty		- the only region of the display that has to be redrawn or null for the whole display
+	 * @return - false if the surface is not available
 	 */
-	private void drawOffscreenBitmapOnDisplay(Matrix mtrx) {
-		if(surfaceHolder.getSurface().isValid())
-    	{ 			
-			// Final image is ready to be drawn - Let's buffer it in onScreenBitmap
-			synchronized (onScreenBitmap) 
-			{
-				onScreenCanvas.drawColor(Color.BLACK);
-				onScreenCanvas.drawBitmap(offScreenBitmap, mtrx, null);
-			}
-				
-			// Now blit the image on the display
-			Canvas canvas = surfaceHolder.lockCanvas(); 
-			canvas.drawBitmap(onScreenBitmap, emptyMatrix, null); 
-	        surfaceHolder.unlockCanvasAndPost(canvas);
-    	}
+	private boolean drawOffscreenBitmapOnDisplay(Matrix mtrx, boolean withOrbit, Rect dirty) {
+		if(surfaceHolder.getSurface().isValid() == false)
+			return false;
+		
+		Canvas canvas;
+		if(dirty == null)
+		{
+			canvas = surfaceHolder.lockCanvas();
+		}
+		else
+		{
+			// The surface keeps its content outside of the dirty region - the drawing is clipped to it
+			surfaceDirtyRegion.set(dirty);
+			canvas = surfaceHolder.lockCanvas(surfaceDirtyRegion);
+		}
+		if(canvas == null)
+			return false;
+		
+		if(mtrx.isIdentity())
+		{
+			canvas.drawBitmap(offScreenBitmap, 0, 0, null); // The bitmap covers the whole display
+		}
+		else
+		{
+			// Parts of the display may not be covered by the transformed bitmap - fill them by the preview (if any)
+			canvas.drawColor(Color.BLACK);
+			previewRenderer.draw(canvas);
+			canvas.drawBitmap(offScreenBitmap, mtrx, null);
+		}
+		
+		// The orbit is not drawn onto the offscreen bitmap, because only the changed regions of it are updated
+		if(withOrbit)
+			OrbitDrawer.draw(fractalSettings, canvas);
+		
+        surfaceHolder.unlockCanvasAndPost(canvas);
+        return true;
 	}
 
 
+	/** Returns how long it took from the creation of the view to the first pixels of the fractal on the display
+	 * 
+	 * @return - time in nanoseconds or -1 if nothing has been shown yet
+	 */
+	public long getFirstFrameLatency()
+	{
+		return lFirstFrameLatency;
+	}
+	
+	
+	/**
+     * Called by the Activity when it is destroyed. Stops the threads of the fractal drawer and of the previews.
+     */
+    public void onDestroy()
+    {
+    	if(fractalDrawer != null)
+    		fractalDrawer.shutdown();
+    	if(previewRenderer != null)
+    		previewRenderer.shutdown();
+    }
+    
+    
 	/**
      * Called by the Activity when it resumes
      */
     public void onResume()
     {
-           isThreadRunning = true;
+           displayScheduler.start();
+           if(fractalDrawer != null)
+        	   fractalDrawer.resumeProcessing();
+           invalidateDisplay(); // The surface has been recreated
            drawingThread = new Thread(this);
            drawingThread.start();
     }
@@ -282,7 +509,14 @@ public class FractalSurfaceView extends SurfaceView implements Runnable
     public void onPause()
     {
         boolean retry = true;
-        isThreadRunning = false;
+        displayScheduler.stop();
+        
+        // Don't drain the battery in the background. The process may be killed while paused - save the progress of the calculation.
+        if(fractalDrawer != null)
+        {
+        	fractalDrawer.checkpointSoon();
+        	fractalDrawer.pauseProcessing();
+        }
 
         while(retry)
         {
@@ -308,9 +542,17 @@ public class FractalSurfaceView extends SurfaceView implements Runnable
     		int touchY = Math.round(event.getRawY());
     		fractalSettings.setOrbitPoint(fractalSettings.getRealCoord_X(touchX, touchY),
     									  fractalSettings.getRealCoord_Y(touchX, touchY));
+    		invalidateDisplay();
     		return true;
     	}     
     	
+    	// Track the speed of the fingers for the fling
+    	if(velocityTracker == null)
+    		velocityTracker = VelocityTracker.obtain();
+    	if(event.getAction() == MotionEvent.ACTION_DOWN)
+    		velocityTracker.clear();
+    	velocityTracker.addMovement(event);
+    	
     	// Reset the values before reading the current state
     	currentTransformation.reset(); 
   	
@@ -322,6 +564,9 @@ public class FractalSurfaceView extends SurfaceView implements Runnable
     	{
         	fractalTransformation.post(currentTransformation);
         	updateMotionStatus(event); // Update the status of the application: i.e. MOTION or NO_MOTION
+        	
+        	// Input events come at most once per display refresh, so this is the frame rate during a gesture
+        	displayScheduler.requestFrame();
     	}
         
 
@@ -368,19 +613,29 @@ public class FractalSurfaceView extends SurfaceView implements Runnable
             
         case COLOR:
             fractalSettings.setColorMode(ColorMode.COLOR);
+            displayScheduler.requestFrame();
             break;
             
         case COLOR_INVERTED:
             fractalSettings.setColorMode(ColorMode.COLOR_INVERTED);
+            displayScheduler.requestFrame();
             break;
             
         case BW:
             fractalSettings.setColorMode(ColorMode.BW);
+            displayScheduler.requestFrame();
+            break;
+            
+        case HISTOGRAM:
+            fractalSettings.setColorMode(ColorMode.HISTOGRAM);
+            displayScheduler.requestFrame();
             break;
             
         case SHAREIMAGE:
             // First save the image
             File savedImage = saveFractalImage();
+            if(savedImage == null)
+            	break;
             // Share the file
             Intent msg = new Intent(Intent.ACTION_SEND);
             msg.setType("image/png"); //$NON-NLS-1$
@@ -390,6 +645,7 @@ public class FractalSurfaceView extends SurfaceView implements Runnable
             
         case HIDEORBIT:
         	fractalSettings.setOrbitVisibility(false);
+        	invalidateDisplay();
         	// Tell the activity to update its controls (slider, info texts, etc)
         	((ActivityMain)context).updateControls(fractalSettings);
         	break;
@@ -738,12 +994,17 @@ public class FractalSurfaceView extends SurfaceView implements Runnable
     {
         try {
 			fractalSettings.setColorPeriodicity(clrPer);
+			displayScheduler.requestFrame();
 		} catch (Exception e) {
 			e.printStackTrace();
 		} 
     }
     
     
+    /** Saves the current fractal image as PNG
+     * 
+     * @return - the saved file or null if nothing has been calculated yet
+     */
     private File saveFractalImage()
     {
         // Create a path where we will place our picture in the user's
@@ -773,11 +1034,15 @@ public class FractalSurfaceView extends SurfaceView implements Runnable
             // no error checking, and assumes the picture is small (does not
             // try to copy it in chunks).  Note that if external storage is
             // not currently mounted this will silently fail.   
+            // The image is created from the calculated data only now - no copy of the display is kept
+            Bitmap image = fractalDrawer.createImage(fractalSettings);
+            if(image == null)
+            	return null; // Nothing has been calculated yet
+            OrbitDrawer.draw(fractalSettings, new Canvas(image));
+            
             OutputStream os = new FileOutputStream(file);   
-            synchronized (onScreenBitmap) 
-            {
-            	onScreenBitmap.compress(CompressFormat.PNG, 100, os);
-			}
+            image.compress(CompressFormat.PNG, 100, os);
+            image.recycle();
             
             os.close();
         } catch (FileNotFoundException e) {
@@ -806,6 +1071,7 @@ public class FractalSurfaceView extends SurfaceView implements Runnable
         public boolean onScale(ScaleGestureDetector detector) 
         {
         	currentTransformation.mScale = detector.getScaleFactor();   
+        	fractalDrawer.setFocus(detector.getFocusX(), detector.getFocusY()); // The user looks where the fingers zoom
             return true;
         }
     }
@@ -826,6 +1092,7 @@ public class FractalSurfaceView extends SurfaceView implements Runnable
             PointF delta = detector.getFocusDelta();       
             currentTransformation.mTranslateX = delta.x;
             currentTransformation.mTranslateY = delta.y;
+            fractalDrawer.setFocus(detector.getFocusX(), detector.getFocusY());
             return true;
         }
     }   
@@ -843,7 +1110,7 @@ public class FractalSurfaceView extends SurfaceView implements Runnable
     		break;
     		
     	case MotionEvent.ACTION_UP:
-    		setAppStatus(AppStatus.NO_MOTION);
+    		startFling();
     		break;
     	}	
     }
@@ -876,6 +1143,43 @@ public class FractalSurfaceView extends SurfaceView implements Runnable
     	fractalDrawer.resetProcessing();
     }
     
+    
+    /** Returns to the previously visited place of the fractal (if any)
+     * 
+     * @return - false if there is no place to return to
+     */
+    boolean stepBack()
+    {
+    	if(fractalDrawer == null || getAppStatus() != AppStatus.NO_MOTION || bUserIsTouchingTheScreen)
+    		return false;
+    	
+    	if(fractalDrawer.stepBack() == false)
+    		return false;
+    	
+    	((ActivityMain)context).updateControls(fractalSettings);
+    	invalidateDisplay();
+    	return true;
+    }
+    
+    
+    /**
+     * Forces the display to be redrawn, even if the fractal image has not changed
+     */
+    void invalidateDisplay()
+    {
+    	bDisplayInvalid = true;
+    	displayScheduler.requestFrame();
+    }
+    
+    
+    /** Returns the number of frames in which the display was woken up but nothing was drawn.
+     *  Should stay the same while the fractal is finished and the user doesn't touch the screen.
+     */
+    long getIdleFramesCount()
+    {
+    	return displayScheduler.getIdleFramesCount();
+    }
+    
 
     
 }// MainView class
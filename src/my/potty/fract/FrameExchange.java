@@ -0,0 +1,104 @@
+package my.potty.fract;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.Rect;
+
+/** Passes the calculated fractal image from the drawing thread to the display thread
+ *  without the two threads ever waiting for each other.
+ *
+ *  Three frames are used (triple buffering):
+ *  1) write frame - owned by the drawing thread, updated before being published
+ *  2) ready frame - the last published frame, waiting to be taken by the display thread
+ *  3) read frame  - owned by the display thread, used for coloring and drawing
+ *
+ *  Publishing and taking a frame is a single atomic swap of frame indexes. Instead of copying
+ *  the whole image on each publish, only the regions that changed since a frame was last
+ *  updated are copied into it.
+ *
+ * @author Pottry
+ *
+ */
+class FrameExchange
+{
+	private static final int INDEX_MASK = 3;
+	private static final int FRESH 		= 4; // Set when the ready frame has not been taken by the display thread yet
+
+	private final IterationFrame[] frames = {new IterationFrame(), new IterationFrame(), new IterationFrame()};
+
+	private final AtomicInteger readyFrame = new AtomicInteger(1); // Index of the ready frame + the FRESH flag
+
+	// Used only by the drawing thread
+	private int  writeIndex = 0;
+	private final Rect unseenChanges = new Rect(); // Changes published since the display thread last took a frame
+
+	// Used only by the display thread
+	private int  readIndex  = 2;
+
+
+
+	/** Publishes the current state of the image being calculated. Called by the drawing thread.
+	 *
+	 * @param image 	 - the image being calculated
+	 * @param dirty 	 - region of the image that changed since the last publish
+	 * @param snapshot	 - settings with which the image is calculated
+	 * @param generation - the render job which calculates the image
+	 * @param stage		 - number of completed drawing stages
+	 * @param histogram  - histogram of the image
+	 * @param preview	 - true if the points not calculated yet hold a preview
+	 */
+	void publish(IterationBuffer image, Rect dirty, FractalSnapshot snapshot, int generation, int stage, IterationHistogram histogram, boolean preview)
+	{
+		// All frames now lag behind the image in the dirty region
+		for(int i=0; i<frames.length; i++)
+		{
+			frames[i].stale.union(dirty);
+		}
+		unseenChanges.union(dirty);
+		if(unseenChanges.intersect(0, 0, snapshot.width, snapshot.height) == false)
+			unseenChanges.setEmpty(); // The changes of a bigger image published before a resize
+
+		IterationFrame frame = frames[writeIndex];
+		frame.setSnapshot(snapshot);
+		frame.update(image);
+		frame.generation = generation;
+		frame.stage 	 = stage;
+		frame.histogram  = histogram;
+		frame.preview	 = preview;
+		frame.changed.set(unseenChanges);
+
+		int previous = readyFrame.getAndSet(writeIndex | FRESH);
+		writeIndex   = previous & INDEX_MASK;
+
+		// If the display thread took the previous frame, it has seen everything apart from the last changes.
+		// Otherwise the previous frame came back to us unseen and its changes are still pending.
+		if((previous & FRESH) == 0)
+		{
+			unseenChanges.set(dirty);
+		}
+	}
+
+
+	/** Takes the last published frame if there is one that was not taken yet. Called by the display thread.
+	 *
+	 * @return - the new frame or null if nothing was published since the last call
+	 */
+	IterationFrame acquire()
+	{
+		if((readyFrame.get() & FRESH) == 0)
+			return null;
+
+		readIndex = readyFrame.getAndSet(readIndex) & INDEX_MASK;
+		return frames[readIndex];
+	}
+
+
+	/** Returns the frame currently owned by the display thread
+	 *
+	 * @return - the last frame returned by acquire()
+	 */
+	IterationFrame getReadFrame()
+	{
+		return frames[readIndex];
+	}
+}
@@ -0,0 +1,269 @@
+package my.potty.fract;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** Keeps the images of the last visited windows compressed, so that stepping back to a window
+ *  shows its image at once. An image is kept together with the stage its calculation reached,
+ *  so the calculation of an unfinished image can continue where it was left.
+ *
+ *  Unlike PrefetchCache, the images are compressed (a fractal image usually shrinks to a small
+ *  fraction of its size) and they are used only for exactly the same window. The number of
+ *  images and the memory they take are bounded - the least recently used images are dropped.
+ *
+ *  The images are put and restored by the drawing thread, but it only hands over a copy of each
+ *  image - the compressing is done by this thread with the lowest priority, so the drawing thread
+ *  doesn't wait for it when the user moves on. An image waiting to be compressed is restored from
+ *  its copy. At most MAX_PENDING copies wait, the oldest ones are dropped.
+ *
+ * @author Pottry
+ *
+ */
+class FrameHistory extends Thread
+{
+	/** One compressed image */
+	private static final class Frame
+	{
+		final FractalSnapshot snapshot;
+		final boolean 		  antialiasing;
+		final int 			  stage; 	   // The first stage which was not finished
+		final boolean 		  wide;  	   // Layout of the compressed buffer
+		final byte[] 		  compressed;
+
+		Frame(FractalSnapshot snapshot, boolean antialiasing, int stage, boolean wide, byte[] compressed)
+		{
+			this.snapshot 	  = snapshot;
+			this.antialiasing = antialiasing;
+			this.stage 		  = stage;
+			this.wide 		  = wide;
+			this.compressed   = compressed;
+		}
+	}
+
+	/** An image waiting to be compressed */
+	private static final class Pending
+	{
+		final FractalSnapshot snapshot;
+		final boolean 		  antialiasing;
+		final int 			  stage;
+		final IterationBuffer image; // Copy leased from the BufferPool
+
+		Pending(FractalSnapshot snapshot, boolean antialiasing, int stage, IterationBuffer image)
+		{
+			this.snapshot 	  = snapshot;
+			this.antialiasing = antialiasing;
+			this.stage 		  = stage;
+			this.image 		  = image;
+		}
+	}
+
+	static final int DAMAGED = -2; // Returned by restore() when the image could not be decompressed
+	private static final int MAX_PENDING = 2; // The most images waiting to be compressed
+
+	// Guarded by this
+	private final LinkedList<Frame>   frames  = new LinkedList<Frame>();   // The most recently used first
+	private final LinkedList<Pending> pending = new LinkedList<Pending>(); // The newest first
+	private Pending 	  compressing; // The image being compressed (its copy is released by this thread)
+	private boolean 	  bFinishing = false;
+	private int 		  iBytes = 0;
+	private final int maxFrames;
+	private final int maxBytes;
+
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED); // Used only by this thread
+	private final Inflater inflater = new Inflater(); 					 // Used only by the drawing thread
+
+
+
+	/** Creates an empty history and starts the thread compressing the images
+	 *
+	 * @param maxFrames - the most images kept
+	 * @param maxBytes  - the most memory the compressed images may take
+	 */
+	FrameHistory(int maxFrames, int maxBytes)
+	{
+		this.maxFrames = maxFrames;
+		this.maxBytes  = maxBytes;
+		this.setPriority(MIN_PRIORITY);
+		this.setDaemon(true);
+		this.start();
+	}
+
+
+	/** Hands an image over to be compressed and kept, replacing the image of the same window (if any).
+	 *  Never waits for the compressing.
+	 *
+	 * @param snapshot 	   - the window of the image
+	 * @param antialiasing - if the image was calculated with anti aliasing
+	 * @param stage 	   - the first stage which was not finished (CALCULATION_STAGE_FINISHED if the image is complete)
+	 * @param image 	   - the image (copied)
+	 */
+	void put(FractalSnapshot snapshot, boolean antialiasing, int stage, IterationBuffer image)
+	{
+		IterationBuffer copy = IterationBuffer.leaseCopy(image, BufferPool.Subsystem.CALCULATION);
+
+		synchronized(this)
+		{
+			remove(snapshot, antialiasing);
+			pending.addFirst(new Pending(snapshot, antialiasing, stage, copy));
+			while(pending.size() > MAX_PENDING)
+			{
+				release(pending.removeLast());
+			}
+			notifyAll();
+		}
+	}
+
+
+	/** Ends the thread. The images waiting to be compressed are dropped.
+	 */
+	synchronized void finish()
+	{
+		bFinishing = true;
+		notifyAll();
+	}
+
+
+	@Override
+	public void run()
+	{
+		while(true)
+		{
+			Pending next;
+			synchronized(this)
+			{
+				while(pending.isEmpty() && bFinishing == false)
+				{
+					try{wait();}catch(InterruptedException e){e.printStackTrace();}
+				}
+				if(bFinishing)
+				{
+					while(pending.isEmpty() == false)
+					{
+						release(pending.removeFirst());
+					}
+					return;
+				}
+
+				// The oldest first - it stays in the list, so it can be restored while it is being compressed
+				next 		= pending.getLast();
+				compressing = next;
+			}
+
+			byte[] compressed = next.image.compress(deflater);
+
+			synchronized(this)
+			{
+				// Unless it was replaced or dropped meanwhile
+				if(pending.remove(next))
+				{
+					Frame frame = new Frame(next.snapshot, next.antialiasing, next.stage, next.image.wide != null, compressed);
+					frames.addFirst(frame);
+					iBytes += frame.compressed.length;
+
+					// Drop the least recently used images, but always keep the new one
+					while((iBytes > maxBytes || frames.size() > maxFrames) && frames.size() > 1)
+					{
+						iBytes -= frames.removeLast().compressed.length;
+					}
+				}
+				compressing = null;
+				next.image.release(BufferPool.Subsystem.CALCULATION);
+			}
+		}
+	}
+
+
+	/** Decompresses the image of a window into the target buffer
+	 *
+	 * @param snapshot 	   - the window
+	 * @param antialiasing - if the image should be calculated with anti aliasing
+	 * @param target 	   - buffer for the image (must have the size of the window)
+	 * @return - the first stage which was not finished for the image, -1 if the image is not kept
+	 * 			 (the target is not changed then) or DAMAGED if it could not be decompressed (the target
+	 * 			 is partly overwritten then and the image is not kept anymore)
+	 */
+	int restore(FractalSnapshot snapshot, boolean antialiasing, IterationBuffer target)
+	{
+		Frame found = null;
+		synchronized(this)
+		{
+			for(Pending waiting : pending)
+			{
+				if(waiting.antialiasing == antialiasing && (waiting.image.wide != null) == (target.wide != null) && 
+				   snapshot.isSameView(waiting.snapshot))
+				{
+					target.copy(waiting.image, 0, 0, 0, 0, target.width, target.height);
+					return waiting.stage;
+				}
+			}
+
+			Iterator<Frame> it = frames.iterator();
+			while(it.hasNext())
+			{
+				Frame frame = it.next();
+				if(frame.antialiasing == antialiasing && frame.wide == (target.wide != null) && snapshot.isSameView(frame.snapshot))
+				{
+					it.remove();
+					found = frame;
+					break;
+				}
+			}
+		}
+		if(found == null)
+			return -1;
+
+		// Decompressed outside of the monitor, so the compressing thread doesn't wait
+		boolean bRestored = target.decompress(found.compressed, inflater);
+
+		synchronized(this)
+		{
+			if(bRestored == false)
+			{
+				iBytes -= found.compressed.length;
+				return DAMAGED;
+			}
+
+			frames.addFirst(found); // The most recently used now
+			return found.stage;
+		}
+	}
+
+
+	/** Removes the images of a window. Called with the monitor.
+	 */
+	private void remove(FractalSnapshot snapshot, boolean antialiasing)
+	{
+		Iterator<Frame> it = frames.iterator();
+		while(it.hasNext())
+		{
+			Frame frame = it.next();
+			if(frame.antialiasing == antialiasing && snapshot.isSameView(frame.snapshot))
+			{
+				iBytes -= frame.compressed.length;
+				it.remove();
+			}
+		}
+
+		Iterator<Pending> waiting = pending.iterator();
+		while(waiting.hasNext())
+		{
+			Pending image = waiting.next();
+			if(image.antialiasing == antialiasing && snapshot.isSameView(image.snapshot))
+			{
+				waiting.remove();
+				release(image);
+			}
+		}
+	}
+
+
+	/** Returns the copy of a dropped image to the pool, unless it is being compressed. Called with the monitor.
+	 */
+	private void release(Pending image)
+	{
+		if(image != compressing)
+			image.image.release(BufferPool.Subsystem.CALCULATION);
+	}
+}
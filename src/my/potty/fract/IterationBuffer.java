@@ -0,0 +1,382 @@
+package my.potty.fract;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import android.graphics.Rect;
+
+/** Number of iterations for each point of the fractal image.
+ *
+ *  The iterations limit is usually far below 65535, so the values are kept in a char[]
+ *  (16 bits per point) whenever the limit allows it, and in an int[] only for bigger limits.
+ *  Exactly one of the two arrays exists. Code which goes through many points should read
+ *  the array directly and have a separate loop for each layout.
+ *
+ *  Each point is stored as the number of iterations + 1, so that 0 means the point was not
+ *  inspected yet. This is also the index of the point's color in the lookup tables of ColorCreator.
+ *
+ * @author Pottry
+ *
+ */
+public final class IterationBuffer
+{
+	/** The highest iterations limit which can be stored in the 16 bit layout */
+	public static final int NARROW_LIMIT = Character.MAX_VALUE - 1;
+
+	public final int width, height;
+
+	final char[] narrow; // Values of the points if the limit is up to NARROW_LIMIT, otherwise null
+	final int[]  wide;   // Values of the points if the limit is above NARROW_LIMIT, otherwise null
+
+
+
+	/** Creates a buffer in which no point is inspected
+	 *
+	 * @param width 		- width of the image
+	 * @param height		- height of the image
+	 * @param maxIterations - the iterations limit of the image
+	 */
+	public IterationBuffer(int width, int height, int maxIterations)
+	{
+		this.width  = width;
+		this.height = height;
+
+		if(isNarrow(maxIterations))
+		{
+			narrow = new char[width*height];
+			wide   = null;
+		}
+		else
+		{
+			narrow = null;
+			wide   = new int[width*height];
+		}
+	}
+
+
+	private IterationBuffer(int width, int height, char[] narrow, int[] wide)
+	{
+		this.width  = width;
+		this.height = height;
+		this.narrow = narrow;
+		this.wide 	= wide;
+	}
+
+
+	/** Creates a buffer in which no point is inspected, taking its array from the shared BufferPool
+	 *
+	 * @param width 		- width of the image
+	 * @param height		- height of the image
+	 * @param maxIterations - the iterations limit of the image
+	 * @param owner			- the subsystem the array is counted to
+	 * @return - the buffer (return its array by release() when it is not used anymore)
+	 */
+	public static IterationBuffer lease(int width, int height, int maxIterations, BufferPool.Subsystem owner)
+	{
+		BufferPool 		pool = BufferPool.getInstance();
+		IterationBuffer buffer;
+
+		if(isNarrow(maxIterations))
+			buffer = new IterationBuffer(width, height, pool.leaseChars(width*height, owner), null);
+		else
+			buffer = new IterationBuffer(width, height, null, pool.leaseInts(width*height, owner));
+
+		buffer.clear();
+		return buffer;
+	}
+
+
+	/** Creates a copy of another buffer, taking its array from the shared BufferPool
+	 *
+	 * @param source - the buffer to be copied
+	 * @param owner	 - the subsystem the array is counted to
+	 * @return - the copy (return its array by release() when it is not used anymore)
+	 */
+	public static IterationBuffer leaseCopy(IterationBuffer source, BufferPool.Subsystem owner)
+	{
+		BufferPool pool = BufferPool.getInstance();
+		int 	   size = source.width*source.height;
+
+		if(source.narrow != null)
+		{
+			char[] narrow = pool.leaseChars(size, owner);
+			System.arraycopy(source.narrow, 0, narrow, 0, size);
+			return new IterationBuffer(source.width, source.height, narrow, null);
+		}
+
+		int[] wide = pool.leaseInts(size, owner);
+		System.arraycopy(source.wide, 0, wide, 0, size);
+		return new IterationBuffer(source.width, source.height, null, wide);
+	}
+
+
+	/** Returns the array of a buffer created by lease() or leaseCopy() to the shared BufferPool.
+	 *  The buffer must not be used afterwards.
+	 *
+	 * @param owner - the subsystem the buffer was leased to
+	 */
+	public void release(BufferPool.Subsystem owner)
+	{
+		BufferPool.getInstance().release(narrow != null ? (Object)narrow : wide, owner);
+	}
+
+
+	/** Creates a copy of another buffer
+	 *
+	 * @param source - the buffer to be copied
+	 */
+	public IterationBuffer(IterationBuffer source)
+	{
+		width  = source.width;
+		height = source.height;
+		narrow = (source.narrow != null) ? source.narrow.clone() : null;
+		wide   = (source.wide   != null) ? source.wide.clone()   : null;
+	}
+
+
+	/** Checks if the buffer can hold an image with the supplied parameters
+	 *
+	 * @param width 		- width of the image
+	 * @param height		- height of the image
+	 * @param maxIterations - the iterations limit of the image
+	 * @return true - the buffer has the size and the layout needed for the image
+	 */
+	public boolean fits(int width, int height, int maxIterations)
+	{
+		return this.width == width && this.height == height && (narrow != null) == isNarrow(maxIterations);
+	}
+
+
+	/** Returns the number of iterations of a point
+	 *
+	 * @param x - x-coordinate of the point
+	 * @param y - y-coordinate of the point
+	 * @return - number of iterations or -1 if the point was not inspected
+	 */
+	public int get(int x, int y)
+	{
+		int index = y*width + x;
+		return (narrow != null ? narrow[index] : wide[index]) - 1;
+	}
+
+
+	/** Stores the number of iterations of a point
+	 *
+	 * @param x 		 - x-coordinate of the point
+	 * @param y 		 - y-coordinate of the point
+	 * @param iterations - number of iterations
+	 */
+	public void set(int x, int y, int iterations)
+	{
+		int index = y*width + x;
+		if(narrow != null)
+			narrow[index] = (char)(iterations+1);
+		else
+			wide[index]   = iterations+1;
+	}
+
+
+	/** Marks all points as not inspected
+	 */
+	public void clear()
+	{
+		if(narrow != null)
+			Arrays.fill(narrow, (char)0);
+		else
+			Arrays.fill(wide, 0);
+	}
+
+
+	/** Copies a region from another buffer with the same size and layout
+	 *
+	 * @param source - the buffer to copy from
+	 * @param region - the region to be copied
+	 */
+	public void copy(IterationBuffer source, Rect region)
+	{
+		int length = region.width();
+
+		for(int y=region.top; y<region.bottom; y++)
+		{
+			int offset = y*width + region.left;
+			if(narrow != null)
+				System.arraycopy(source.narrow, offset, narrow, offset, length);
+			else
+				System.arraycopy(source.wide, 	offset, wide, 	offset, length);
+		}
+	}
+
+
+	/** Copies a rectangle from another buffer with the same layout, which can have a different size
+	 *
+	 * @param source  - the buffer to copy from
+	 * @param sourceX - x-coordinate of the rectangle in the source
+	 * @param sourceY - y-coordinate of the rectangle in the source
+	 * @param x 	  - x-coordinate of the rectangle in this buffer
+	 * @param y 	  - y-coordinate of the rectangle in this buffer
+	 * @param width   - width of the rectangle
+	 * @param height  - height of the rectangle
+	 */
+	public void copy(IterationBuffer source, int sourceX, int sourceY, int x, int y, int width, int height)
+	{
+		for(int row=0; row<height; row++)
+		{
+			int sourceOffset = (sourceY+row)*source.width + sourceX;
+			int offset 		 = (y+row)*this.width + x;
+			if(narrow != null)
+				System.arraycopy(source.narrow, sourceOffset, narrow, offset, width);
+			else
+				System.arraycopy(source.wide, 	sourceOffset, wide,   offset, width);
+		}
+	}
+
+
+	/** Fills the buffer with the values of another image of the same fractal, seen through a
+	 *  different window (moved, scaled or rotated). Each point takes the value of the nearest 
+	 *  point of the other image. Both buffers must have the same layout.
+	 *
+	 * @param source 		 - the other image
+	 * @param sourceSnapshot - settings of the other image
+	 * @param snapshot		 - settings of this image
+	 * @param clearOutside	 - if true, the points outside of the other image are marked as not inspected,
+	 * 						   otherwise they keep their values
+	 */
+	public void reproject(IterationBuffer source, FractalSnapshot sourceSnapshot, FractalSnapshot snapshot, boolean clearOutside)
+	{
+		// The mapping between the two windows is affine - find the position of our pixel (0,0) 
+		// in the source image and how it moves with each step in x and y
+		double originX = sourcePixel_X(sourceSnapshot, snapshot, 0, 0);
+		double originY = sourcePixel_Y(sourceSnapshot, snapshot, 0, 0);
+		double stepXx  = sourcePixel_X(sourceSnapshot, snapshot, 1, 0) - originX;
+		double stepXy  = sourcePixel_Y(sourceSnapshot, snapshot, 1, 0) - originY;
+		double stepYx  = sourcePixel_X(sourceSnapshot, snapshot, 0, 1) - originX;
+		double stepYy  = sourcePixel_Y(sourceSnapshot, snapshot, 0, 1) - originY;
+		
+		// A pixel is inside the source if its rounded coordinates are
+		double maxX = source.width  - 0.5;
+		double maxY = source.height - 0.5;
+		
+		for(int y=0; y<height; y++)
+		{
+			double sx 	 = originX + y*stepYx;
+			double sy 	 = originY + y*stepYy;
+			int    index = y*width;
+			
+			for(int x=0; x<width; x++, index++, sx+=stepXx, sy+=stepXy)
+			{
+				int value = 0;
+				if(sx >= -0.5 && sx < maxX && sy >= -0.5 && sy < maxY)
+				{
+					int sourceIndex = (int)(sy+0.5)*source.width + (int)(sx+0.5);
+					value = (narrow != null) ? source.narrow[sourceIndex] : source.wide[sourceIndex];
+				}
+				else if(clearOutside == false)
+				{
+					continue;
+				}
+				
+				if(narrow != null)
+					narrow[index] = (char)value;
+				else
+					wide[index]   = value;
+			}
+		}
+	}
+	
+	
+	private static double sourcePixel_X(FractalSnapshot sourceSnapshot, FractalSnapshot snapshot, int x, int y)
+	{
+		return sourceSnapshot.getPixel_X(snapshot.getRealCoord_X(x, y), snapshot.getRealCoord_Y(x, y));
+	}
+	
+	private static double sourcePixel_Y(FractalSnapshot sourceSnapshot, FractalSnapshot snapshot, int x, int y)
+	{
+		return sourceSnapshot.getPixel_Y(snapshot.getRealCoord_X(x, y), snapshot.getRealCoord_Y(x, y));
+	}
+
+
+	/** Compresses the values of the points
+	 *
+	 * @param deflater - the compressor (reset before use)
+	 * @return - the compressed values
+	 */
+	public byte[] compress(Deflater deflater)
+	{
+		byte[] raw = new byte[getByteCount()];
+		if(narrow != null)
+			ByteBuffer.wrap(raw).asCharBuffer().put(narrow);
+		else
+			ByteBuffer.wrap(raw).asIntBuffer().put(wide);
+
+		deflater.reset();
+		deflater.setInput(raw);
+		deflater.finish();
+
+		// Usually the values shrink a lot, but in the worst case the output is a bit bigger than the input
+		byte[] compressed = new byte[raw.length/4 + 64];
+		int    length 	  = 0;
+		while(deflater.finished() == false)
+		{
+			if(length == compressed.length)
+				compressed = resize(compressed, compressed.length*2);
+			length += deflater.deflate(compressed, length, compressed.length - length);
+		}
+		return resize(compressed, length);
+	}
+
+
+	/** Replaces the values of the points by values compressed by compress() from a buffer
+	 *  with the same size and layout
+	 *
+	 * @param data 	   - the compressed values
+	 * @param inflater - the decompressor (reset before use)
+	 * @return - false if the data are damaged or don't fit the buffer (the values are undefined then)
+	 */
+	public boolean decompress(byte[] data, Inflater inflater)
+	{
+		byte[] raw = new byte[getByteCount()];
+		inflater.reset();
+		inflater.setInput(data);
+		try
+		{
+			if(inflater.inflate(raw) != raw.length || inflater.finished() == false)
+				return false;
+		}
+		catch(DataFormatException e)
+		{
+			e.printStackTrace();
+			return false;
+		}
+
+		if(narrow != null)
+			ByteBuffer.wrap(raw).asCharBuffer().get(narrow);
+		else
+			ByteBuffer.wrap(raw).asIntBuffer().get(wide);
+		return true;
+	}
+
+
+	/** Returns the number of bytes used by the values of the points
+	 */
+	public int getByteCount()
+	{
+		return narrow != null ? narrow.length*2 : wide.length*4;
+	}
+
+
+	private static byte[] resize(byte[] array, int length) // Arrays.copyOf() needs API level 9
+	{
+		byte[] resized = new byte[length];
+		System.arraycopy(array, 0, resized, 0, Math.min(array.length, length));
+		return resized;
+	}
+
+
+	private static boolean isNarrow(int maxIterations)
+	{
+		return maxIterations <= NARROW_LIMIT;
+	}
+}
@@ -0,0 +1,66 @@
+package my.potty.fract;
+
+import android.graphics.Rect;
+
+/** One published state of the fractal image - the number of iterations for each point
+ *  together with the settings it was calculated with.
+ *
+ *  Frames are passed between the drawing thread and the display thread by FrameExchange.
+ *  While a frame is held by the display thread the drawing thread does not change its data.
+ *
+ * @author Pottry
+ *
+ */
+class IterationFrame
+{
+	IterationBuffer iterations; // Number of iterations for each point
+	FractalSnapshot snapshot;   // The settings with which the frame was calculated
+	int 			generation; // The render job that produced the frame
+	int 			stage;		// Number of completed drawing stages
+	boolean			preview;	// The points not calculated yet hold values taken from the previous image
+	IterationHistogram histogram; // Histogram of the render job that produced the frame
+
+	/** Region which has changed since the frame the display thread got before this one */
+	final Rect changed = new Rect();
+
+	/** Region where the data of this frame lags behind the image being calculated.
+	 *  Used only by the drawing thread. */
+	final Rect stale   = new Rect();
+
+
+
+	/** Makes sure the frame can hold an image with the size and the iterations limit of the snapshot.
+	 *  If the buffer must be reallocated the whole frame is marked as stale.
+	 *
+	 * @param newSnapshot - settings of the image that is going to be stored into the frame
+	 */
+	void setSnapshot(FractalSnapshot newSnapshot)
+	{
+		if(iterations == null || iterations.fits(newSnapshot.width, newSnapshot.height, newSnapshot.iterationsLimmit) == false)
+		{
+			if(iterations != null)
+				iterations.release(BufferPool.Subsystem.DISPLAY);
+			iterations = IterationBuffer.lease(newSnapshot.width, newSnapshot.height, newSnapshot.iterationsLimmit, BufferPool.Subsystem.DISPLAY);
+			stale.set(0, 0, newSnapshot.width, newSnapshot.height);
+		}
+		else if(stale.intersect(0, 0, newSnapshot.width, newSnapshot.height) == false)
+		{
+			stale.setEmpty(); // Changes of an image of another size (published after a resize)
+		}
+		snapshot = newSnapshot;
+	}
+
+
+	/** Copies the stale region of the frame from the supplied image.
+	 *
+	 * @param source - image with the same size and layout as the frame
+	 */
+	void update(IterationBuffer source)
+	{
+		if(stale.isEmpty() == false)
+		{
+			iterations.copy(source, stale);
+			stale.setEmpty();
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package my.potty.fract;
+
+/** Counts how many points of the fractal image needed each number of iterations.
+ *  Used for the histogram-equalized coloring.
+ *
+ *  The counting is done by the drawing threads while they calculate the points, so no
+ *  additional pass over the image is needed. Each drawing thread counts into its own shard,
+ *  so the threads never write to the same array. The shards are merged only when the
+ *  colors are created.
+ *
+ * @author Pottry
+ *
+ */
+class IterationHistogram
+{
+	private final int[][] shards; // For each shard: count for each number of iterations + the total count in the last element
+	private final int 	  maxIterations;
+
+
+
+	/** Creates an empty histogram
+	 *
+	 * @param maxIterations - highest possible number of iterations
+	 * @param shardsCount	- number of threads which are going to count points at the same time
+	 */
+	IterationHistogram(int maxIterations, int shardsCount)
+	{
+		this.maxIterations = maxIterations;
+		shards = new int[shardsCount][maxIterations+2];
+	}
+
+
+	/** Creates a copy of a histogram with its shards merged. The copy doesn't change when more
+	 *  points are counted into the original, so the colors made from it stay valid.
+	 *
+	 * @param source - the histogram to be copied
+	 */
+	IterationHistogram(IterationHistogram source)
+	{
+		maxIterations = source.maxIterations;
+		shards = new int[1][];
+		shards[0] = new int[maxIterations+2];
+
+		int[] merged = source.merge();
+		int   count  = 0;
+		for(int i=0; i<=maxIterations; i++)
+		{
+			shards[0][i] = merged[i];
+			count 		+= merged[i];
+		}
+		shards[0][maxIterations+1] = count;
+	}
+
+
+	/** Counts one point. Each thread must use its own shard.
+	 *
+	 * @param shard		 - index of the shard of the calling thread
+	 * @param iterations - number of iterations for the point
+	 */
+	void add(int shard, int iterations)
+	{
+		int[] counts = shards[shard];
+		counts[iterations]++;
+		counts[maxIterations+1]++;
+	}
+
+
+	/** Returns the number of points counted so far
+	 */
+	int getCount()
+	{
+		int count = 0;
+		for(int i=0; i<shards.length; i++)
+		{
+			count += shards[i][maxIterations+1];
+		}
+		return count;
+	}
+
+
+	/** Merges the shards.
+	 *
+	 * @return - array with the count of points for each number of iterations (from 0 to maxIterations)
+	 */
+	int[] merge()
+	{
+		int[] merged = new int[maxIterations+1];
+		for(int i=0; i<shards.length; i++)
+		{
+			int[] counts = shards[i];
+			for(int j=0; j<=maxIterations; j++)
+			{
+				merged[j] += counts[j];
+			}
+		}
+		return merged;
+	}
+}
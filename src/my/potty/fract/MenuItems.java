@@ -5,7 +5,7 @@ public enum MenuItems {
 	RESET, 
 	TOGGLEBUTTONS, 
 	COLOROPTIONS, 
-	    COLOR, COLOR_INVERTED, BW,
+	    COLOR, COLOR_INVERTED, BW, HISTOGRAM,
     FRACTALTYPE,
         MANDELBROTSET, CUSTOMFRACTAL,
 	ANTIALIASING,
@@ -0,0 +1,119 @@
+package my.potty.fract;
+
+/** Palette of colors defined by a few gradient stops.
+ *
+ *  Only the stops are kept in the code. The full array of colors is created by linear
+ *  interpolation between neighboring stops the first time it is needed and then cached,
+ *  so palettes which are never used cost nothing.
+ *
+ * @author Pottry
+ *
+ */
+public final class Palette
+{
+	/** Gray scale going from black to white and back to black */
+	public static final Palette BW = new Palette(510,
+			new int[]{0, 		254, 	  255, 		509},
+			new int[]{0x010101, 0xFFFFFF, 0xFFFFFF, 0x010101});
+
+	/** Full circle of hues (saturation 80%, value 70%) - the colors returned by Color.HSVToColor() */
+	public static final Palette COLOR = new Palette(360,
+			new int[]{0, 		60, 	  120, 		180, 	  240, 		300, 	  360},
+			new int[]{0xB32323, 0xB3B323, 0x23B323, 0x23B3B3, 0x2323B3, 0xB323B3, 0xB32323});
+
+	private final int   size;
+	private final int[] stopPositions;
+	private final int[] stopColors;
+
+	private volatile int[] colors; // Created on the first use
+
+
+
+	/** Creates a palette. The stops must be sorted by their position, the first one at position 0.
+	 *  A stop may lie at position size, in which case it is used only for interpolating the last colors.
+	 *
+	 * @param size 			- number of colors in the palette (at least 2)
+	 * @param stopPositions - index of each stop in the palette
+	 * @param stopColors	- RGB color of each stop (alpha is ignored)
+	 */
+	public Palette(int size, int[] stopPositions, int[] stopColors)
+	{
+		if(size < 2 || stopPositions.length == 0 || stopPositions.length != stopColors.length || stopPositions[0] != 0)
+			throw new IllegalArgumentException("Invalid palette definition"); //$NON-NLS-1$
+
+		for(int i=1; i<stopPositions.length; i++)
+		{
+			if(stopPositions[i] <= stopPositions[i-1] || stopPositions[i] > size)
+				throw new IllegalArgumentException("Palette stops must be sorted and inside the palette"); //$NON-NLS-1$
+		}
+
+		this.size 			= size;
+		this.stopPositions 	= stopPositions.clone();
+		this.stopColors 	= stopColors.clone();
+	}
+
+
+	/** Returns the colors of the palette. The returned array must not be modified.
+	 *
+	 * @return - array of RGB colors
+	 */
+	public int[] getColors()
+	{
+		int[] result = colors;
+		if(result == null)
+		{
+			// If two threads get here at the same time, both create the same array - no harm done
+			result = expand();
+			colors = result;
+		}
+		return result;
+	}
+
+
+	/** Creates the array of colors by interpolating between the stops
+	 */
+	private int[] expand()
+	{
+		int[] result = new int[size];
+		int   stop 	 = 0;
+
+		for(int i=0; i<size; i++)
+		{
+			while(stop+1 < stopPositions.length && stopPositions[stop+1] <= i)
+				stop++;
+
+			// Past the last stop - keep its color
+			if(stop+1 == stopPositions.length)
+			{
+				result[i] = stopColors[stop] & 0xFFFFFF;
+				continue;
+			}
+
+			int from   = stopColors[stop];
+			int to 	   = stopColors[stop+1];
+			int offset = i - stopPositions[stop];
+			int length = stopPositions[stop+1] - stopPositions[stop];
+
+			result[i] = (interpolate(from >> 16, to >> 16, offset, length) << 16) |
+						(interpolate(from >> 8,  to >> 8,  offset, length) << 8)  |
+						 interpolate(from, 		 to, 	   offset, length);
+		}
+		return result;
+	}
+
+
+	/** Linear interpolation of one color channel, rounded to the nearest value
+	 *
+	 * @param from 	 - channel value at the start (only the lowest 8 bits are used)
+	 * @param to	 - channel value at the end (only the lowest 8 bits are used)
+	 * @param offset - distance from the start
+	 * @param length - distance between the start and the end
+	 * @return - channel value in range [0:255]
+	 */
+	private static int interpolate(int from, int to, int offset, int length)
+	{
+		from &= 0xFF;
+		to 	 &= 0xFF;
+		return from + ((to-from)*offset*2 + (to >= from ? length : -length))/(2*length);
+	}
+}
@@ -0,0 +1,59 @@
+package my.potty.fract;
+
+/** The default RenderPolicy. Uses all cores while the device is charging and cools down
+ *  when the battery gets low or hot:
+ *
+ *  charging 					- all threads, no sleeping
+ *  battery above LOW_BATTERY	- all threads but one, no sleeping
+ *  battery at most LOW_BATTERY	- one thread calculating half of the time
+ *  temperature above WARM		- at most two threads calculating half of the time
+ *  temperature above HOT		- one thread calculating a quarter of the time
+ *
+ *  The temperature limits apply also while charging, as the charging itself heats the battery.
+ *
+ * @author Pottry
+ *
+ */
+public class PowerBudgetPolicy implements RenderPolicy
+{
+	public static final int   LOW_BATTERY = 15;   // Battery level (in percent) below which the calculation slows down
+	public static final float WARM 		  = 40f;  // Battery temperature (in degrees Celsius) above which the calculation slows down
+	public static final float HOT 		  = 45f;  // Battery temperature above which the calculation crawls
+
+
+
+	@Override
+	public int getWorkersCount(PowerSignals signals, int maxWorkers)
+	{
+		int workers;
+
+		if(signals.isCharging())
+			workers = maxWorkers;
+		else if(signals.getBatteryPercent() > LOW_BATTERY)
+			workers = maxWorkers - 1; // Leave a core for the UI and the rest of the system
+		else
+			workers = 1;
+
+		float temperature = signals.getTemperature();
+		if(temperature > HOT)
+			workers = 1;
+		else if(temperature > WARM)
+			workers = Math.min(workers, 2);
+
+		return Math.max(1, Math.min(workers, maxWorkers));
+	}
+
+
+	@Override
+	public float getDutyCycle(PowerSignals signals)
+	{
+		float temperature = signals.getTemperature();
+		if(temperature > HOT)
+			return 0.25f;
+		if(temperature > WARM)
+			return 0.5f;
+		if(signals.isCharging() == false && signals.getBatteryPercent() <= LOW_BATTERY)
+			return 0.5f;
+		return 1f;
+	}
+}
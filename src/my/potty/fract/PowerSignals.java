@@ -0,0 +1,22 @@
+package my.potty.fract;
+
+/** Source of the information about the power state of the device, which RenderPolicy bases
+ *  its decisions on. Kept behind an interface, so a policy can be tried with simulated signals.
+ *
+ * @author Pottry
+ *
+ */
+public interface PowerSignals
+{
+	/** Returns the battery level in percent (0 - 100)
+	 */
+	public int getBatteryPercent();
+
+	/** Returns true if the device is connected to a charger
+	 */
+	public boolean isCharging();
+
+	/** Returns the temperature of the battery in degrees Celsius
+	 */
+	public float getTemperature();
+}
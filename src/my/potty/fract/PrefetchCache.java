@@ -0,0 +1,175 @@
+package my.potty.fract;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/** Keeps the calculated images of the last visited windows and of the windows calculated
+ *  in advance (prefetched), so that when the user moves to them, their points don't have
+ *  to be calculated again.
+ *
+ *  An image can be reused for a new window only if the pixels of both windows lie on the
+ *  same grid (see FractalSnapshot.isAlignedWith()) - i.e. after moving by whole pixels.
+ *  Previews of other windows are assembled by TileCache.
+ *
+ *  The size of the cache is bounded - when it gets full the least recently used images are dropped.
+ *  Used only by the drawing thread.
+ *
+ * @author Pottry
+ *
+ */
+class PrefetchCache
+{
+	/** One calculated image */
+	private static final class Entry
+	{
+		final FractalSnapshot snapshot;
+		final boolean 		  antialiasing;
+		final IterationBuffer iterations;
+
+		Entry(FractalSnapshot snapshot, boolean antialiasing, IterationBuffer iterations)
+		{
+			this.snapshot 	  = snapshot;
+			this.antialiasing = antialiasing;
+			this.iterations   = iterations;
+		}
+	}
+
+	private final LinkedList<Entry> entries = new LinkedList<Entry>(); // The most recently used first
+	private int 	  maxBytes;
+	private int 	  iBytes = 0;
+
+
+
+	/** Creates an empty cache
+	 *
+	 * @param maxBytes - the most memory the images in the cache may take
+	 */
+	PrefetchCache(int maxBytes)
+	{
+		this.maxBytes = maxBytes;
+	}
+
+
+	/** Adds an image to the cache. The image must not be changed afterwards.
+	 *  It must be leased from the BufferPool (to the CALCULATION subsystem) - the cache returns it when it is dropped.
+	 *
+	 * @param snapshot 	   - the window of the image
+	 * @param antialiasing - if the image was calculated with anti aliasing
+	 * @param iterations   - the calculated image (points with value 0 are considered not calculated)
+	 */
+	void put(FractalSnapshot snapshot, boolean antialiasing, IterationBuffer iterations)
+	{
+		entries.addFirst(new Entry(snapshot, antialiasing, iterations));
+		iBytes += iterations.getByteCount();
+
+		// Drop the least recently used images, but always keep the new one
+		while(iBytes > maxBytes && entries.size() > 1)
+		{
+			dropLast();
+		}
+	}
+
+
+	/** Changes the most memory the images may take (e.g. after the drawing area was resized).
+	 *  The least recently used images are dropped if needed.
+	 *
+	 * @param maxBytes - the most memory the images in the cache may take
+	 */
+	void setMaxBytes(int maxBytes)
+	{
+		this.maxBytes = maxBytes;
+		while(iBytes > maxBytes && entries.isEmpty() == false)
+		{
+			dropLast();
+		}
+	}
+
+
+	/** Drops all images
+	 */
+	void clear()
+	{
+		while(entries.isEmpty() == false)
+		{
+			dropLast();
+		}
+	}
+
+
+	/** Drops the least recently used image, its buffer goes back to the BufferPool
+	 */
+	private void dropLast()
+	{
+		IterationBuffer iterations = entries.removeLast().iterations;
+		iBytes -= iterations.getByteCount();
+		iterations.release(BufferPool.Subsystem.CALCULATION);
+	}
+
+
+	/** Copies into the target image all points which are already calculated in the cache.
+	 *
+	 * @param snapshot 	   - the window of the target image
+	 * @param antialiasing - if the target image is calculated with anti aliasing
+	 * @param target 	   - the target image
+	 * @param known 	   - bit for each point of the target (index y*width+x), set for each copied point.
+	 * 						 Points with the bit already set are not copied.
+	 * @param histogram	   - the copied points are counted into it (may be null)
+	 * @return - number of copied points
+	 */
+	int seed(FractalSnapshot snapshot, boolean antialiasing, IterationBuffer target, long[] known, IterationHistogram histogram)
+	{
+		int 	  iCopied 	= 0;
+		Entry 	  used 		= null;
+		Iterator<Entry> it 	= entries.iterator();
+
+		while(it.hasNext())
+		{
+			Entry entry = it.next();
+			if(entry.antialiasing != antialiasing || snapshot.isAlignedWith(entry.snapshot) == false)
+				continue;
+
+			// Pixel (0,0) of the target in the cached image
+			int offsetX = snapshot.getOffsetIn_X(entry.snapshot);
+			int offsetY = snapshot.getOffsetIn_Y(entry.snapshot);
+
+			// The part of the target covered by the cached image
+			int left 	= Math.max(0, -offsetX);
+			int top 	= Math.max(0, -offsetY);
+			int right 	= Math.min(target.width,  entry.iterations.width  - offsetX);
+			int bottom 	= Math.min(target.height, entry.iterations.height - offsetY);
+			int iBefore = iCopied;
+
+			for(int y=top; y<bottom; y++)
+			{
+				for(int x=left; x<right; x++)
+				{
+					int index = y*target.width + x;
+					if((known[index >>> 6] & (1L << index)) != 0)
+						continue;
+
+					int iterations = entry.iterations.get(x+offsetX, y+offsetY);
+					if(iterations < 0)
+						continue; // Not calculated in the cached image either
+
+					target.set(x, y, iterations);
+					known[index >>> 6] |= 1L << index;
+					if(histogram != null)
+						histogram.add(0, iterations);
+					iCopied++;
+				}
+			}
+
+			if(iCopied > iBefore && used == null)
+			{
+				used = entry;
+				it.remove();
+			}
+		}
+
+		// The most useful image is now the most recently used
+		if(used != null)
+			entries.addFirst(used);
+
+		return iCopied;
+	}
+}
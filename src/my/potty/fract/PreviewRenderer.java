@@ -0,0 +1,306 @@
+package my.potty.fract;
+
+import my.potty.fract.FractalSettings.ColorMode;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/** Calculates a low resolution preview of the parts of the display which are uncovered
+ *  while the user moves, scales or rotates the fractal.
+ *
+ *  During a gesture the display shows the image calculated before the gesture, transformed
+ *  by the gesture. The parts of the display it doesn't cover are filled by this preview,
+ *  which has one point for each 8x8 (or 16x16) display pixels. Only the points which are not
+ *  covered by the old image are calculated.
+ *
+ *  Each move of the fingers requests a new preview and abandons the one being calculated.
+ *  The display thread never waits for the preview - it draws whatever was published last.
+ *  The progress is published every FRAME_BUDGET, and if a preview could not be finished
+ *  within that time, the next one is calculated with the coarser resolution.
+ *
+ * @author Pottry
+ *
+ */
+class PreviewRenderer extends Thread
+{
+	private static final long FRAME_BUDGET = 12000000; // How long (in ns) a preview is calculated before its progress is shown
+	private static final int  FINE_SCALE   = 8;  		// Size (in display pixels) of one preview point
+	private static final int  COARSE_SCALE = 16; 		// Used when the fine preview can't be finished within one frame
+
+	private final DisplayScheduler displayScheduler; // Told when a new preview is published
+	private final ColorCreator     colorCreator = new ColorCreator();
+
+	// Last request - guarded by this
+	private volatile int 	iRequestedGeneration = 0;
+	private FractalSnapshot requestedSnapshot;   		 // null if the preview was cancelled
+	private final float[]   requestedMatrix = new float[9];
+	private ColorMode 		requestedColorMode;
+	private int 			iRequestedPeriodicity;
+	private boolean 		bShutdown = false;
+
+	// Used only by the preview thread
+	private int 			iCurrentGeneration = 0;
+	private final float[] 	matrix = new float[9]; // Maps display pixels to the pixels of the image calculated before the gesture
+	private int 			iScale = FINE_SCALE;
+	private IterationBuffer iterations;
+	private int[] 			colors;
+
+	// Last published preview - guarded by this
+	private int[] 	publishedColors;
+	private int 	iPublishedWidth, iPublishedHeight, iPublishedScale;
+	private boolean bPublishedChanged = false; // The published colors have not been copied to the bitmap yet
+	private boolean bPublishedValid   = false;
+
+	// Drawn by the display thread - guarded by this
+	private Bitmap 		previewBitmap; // Leased from the BufferPool, returned when the preview is thrown away
+	private final Rect 	destination = new Rect(); // Part of the display covered by the preview
+	private final Paint paint 		= new Paint(Paint.FILTER_BITMAP_FLAG);
+
+
+
+	/** Starts the thread calculating the previews
+	 *
+	 * @param scheduler - asked to draw a frame each time a preview is published
+	 */
+	public PreviewRenderer(DisplayScheduler scheduler)
+	{
+		displayScheduler = scheduler;
+		this.setPriority(NORM_PRIORITY);
+		this.start();
+	}
+
+
+	/** Starts calculating a new preview, abandoning the previous one
+	 *
+	 * @param snapshot 		- settings of the image calculated before the gesture
+	 * @param displayToImage- maps display pixels to the pixels of the image calculated before the gesture
+	 * @param colorMode		- colors of the preview
+	 * @param periodicity	- color periodicity of the preview
+	 */
+	public synchronized void request(FractalSnapshot snapshot, Matrix displayToImage, ColorMode colorMode, int periodicity)
+	{
+		requestedSnapshot 	  = snapshot;
+		displayToImage.getValues(requestedMatrix);
+		requestedColorMode 	  = colorMode;
+		iRequestedPeriodicity = periodicity;
+		iRequestedGeneration++;
+		notifyAll();
+	}
+
+
+	/** Stops calculating. The last published preview can still be drawn.
+	 */
+	public synchronized void cancel()
+	{
+		requestedSnapshot = null;
+		iRequestedGeneration++;
+		notifyAll();
+	}
+
+
+	/** Stops the thread for good. Called when the application is destroyed.
+	 */
+	public synchronized void shutdown()
+	{
+		bShutdown = true;
+		cancel();
+		clear();
+	}
+
+
+	/** Throws away the published preview, so it is not drawn anymore
+	 */
+	public synchronized void clear()
+	{
+		bPublishedValid = false;
+
+		// The bitmap is needed only during a gesture
+		BufferPool.getInstance().release(previewBitmap, BufferPool.Subsystem.DISPLAY);
+		previewBitmap = null;
+	}
+
+
+	/** Draws the last published preview. Called by the display thread.
+	 *  The preview is drawn while holding the lock, because clear() may return its bitmap to the pool
+	 *  from another thread. It has 64 times fewer pixels than the display, so the lock is held briefly.
+	 *
+	 * @param canvas - the display
+	 * @return - false if there is no preview
+	 */
+	public synchronized boolean draw(Canvas canvas)
+	{
+		if(bPublishedValid == false)
+			return false;
+
+		if(bPublishedChanged)
+		{
+			if(previewBitmap == null ||
+			   previewBitmap.getWidth()  != iPublishedWidth ||
+			   previewBitmap.getHeight() != iPublishedHeight)
+			{
+				BufferPool pool = BufferPool.getInstance();
+				pool.release(previewBitmap, BufferPool.Subsystem.DISPLAY);
+				previewBitmap = pool.leaseBitmap(iPublishedWidth, iPublishedHeight, BufferPool.Subsystem.DISPLAY);
+			}
+			previewBitmap.setPixels(publishedColors, 0, iPublishedWidth, 0, 0, iPublishedWidth, iPublishedHeight);
+			destination.set(0, 0, iPublishedWidth*iPublishedScale, iPublishedHeight*iPublishedScale);
+			bPublishedChanged = false;
+		}
+
+		canvas.drawBitmap(previewBitmap, null, destination, paint);
+		return true;
+	}
+
+
+	@Override
+	public void run()
+	{
+		FractalSnapshot snapshot;
+		ColorMode 		colorMode;
+		int 			periodicity;
+
+		while(true)
+		{
+			synchronized(this)
+			{
+				while(iCurrentGeneration == iRequestedGeneration)
+				{
+					try{wait();}catch(InterruptedException e){e.printStackTrace();}
+				}
+				if(bShutdown)
+					return;
+
+				iCurrentGeneration = iRequestedGeneration;
+				snapshot 	= requestedSnapshot;
+				colorMode 	= requestedColorMode;
+				periodicity = iRequestedPeriodicity;
+				System.arraycopy(requestedMatrix, 0, matrix, 0, matrix.length);
+			}
+
+			if(snapshot != null)
+				render(snapshot, colorMode, periodicity);
+		}
+	}
+
+
+	/** Calculates the preview points not covered by the image calculated before the gesture
+	 */
+	private void render(FractalSnapshot snapshot, ColorMode colorMode, int periodicity)
+	{
+		final int scale 	= iScale;
+		final int width 	= (snapshot.width  + scale - 1)/scale;
+		final int height 	= (snapshot.height + scale - 1)/scale;
+		final int iterLimit = snapshot.iterationsLimmit;
+
+		FractalCalculator calculator = FractalCalculator.getInstance(snapshot.fractalType);
+		calculator.setConstant(snapshot.complexConstantRe, snapshot.complexConstantIm);
+
+		if(iterations == null || iterations.fits(width, height, iterLimit) == false)
+		{
+			iterations = new IterationBuffer(width, height, iterLimit);
+			colors 	   = new int[width*height];
+		}
+		else
+		{
+			iterations.clear();
+		}
+		IterationHistogram histogram = new IterationHistogram(iterLimit, 1);
+
+		long 	lStartTime  = System.nanoTime();
+		long 	lDeadline   = lStartTime + FRAME_BUDGET;
+		boolean bOverBudget = false;
+
+		for(int y=0; y<height; y++)
+		{
+			for(int x=0; x<width; x++)
+			{
+				// A new preview was requested
+				if(iCurrentGeneration != iRequestedGeneration)
+					return;
+
+				int left = x*scale, top = y*scale;
+
+				// The image from before the gesture covers the whole point
+				if(isCovered(left, top, snapshot) 		&& isCovered(left+scale, top, snapshot) &&
+				   isCovered(left, top+scale, snapshot) && isCovered(left+scale, top+scale, snapshot))
+					continue;
+
+				// Calculate the middle of the point
+				double imageX = mapX(left + scale/2.0, top + scale/2.0);
+				double imageY = mapY(left + scale/2.0, top + scale/2.0);
+				int    iterationsCount = calculator.testPoint(snapshot.getRealCoord_X(imageX, imageY),
+															  snapshot.getRealCoord_Y(imageX, imageY),
+															  iterLimit);
+				iterations.set(x, y, iterationsCount);
+				histogram.add(0, iterationsCount);
+			}
+
+			// Show the progress once a frame
+			if(System.nanoTime() >= lDeadline)
+			{
+				publish(scale, iterLimit, colorMode, periodicity, histogram);
+				lDeadline  += FRAME_BUDGET;
+				bOverBudget = true;
+			}
+		}
+
+		publish(scale, iterLimit, colorMode, periodicity, histogram);
+
+		// Choose the resolution of the next preview. The coarse one has 4 times fewer points.
+		if(bOverBudget)
+			iScale = COARSE_SCALE;
+		else if(System.nanoTime() - lStartTime < FRAME_BUDGET/4)
+			iScale = FINE_SCALE;
+	}
+
+
+	/** Colors the preview and makes it available to the display thread
+	 */
+	private void publish(int scale, int iterLimit, ColorMode colorMode, int periodicity, IterationHistogram histogram)
+	{
+		int width  = iterations.width;
+		int height = iterations.height;
+
+		colorCreator.getColorArray(iterations, colors, new Rect(0, 0, width, height), iterLimit, colorMode, periodicity, histogram);
+
+		synchronized(this)
+		{
+			// Don't show a preview that was abandoned
+			if(iCurrentGeneration != iRequestedGeneration)
+				return;
+
+			int[] temp 		  = publishedColors;
+			publishedColors   = colors;
+			colors 			  = (temp != null && temp.length == width*height) ? temp : new int[width*height];
+			iPublishedWidth   = width;
+			iPublishedHeight  = height;
+			iPublishedScale   = scale;
+			bPublishedChanged = true;
+			bPublishedValid   = true;
+		}
+
+		displayScheduler.requestFrame();
+	}
+
+
+	/** Checks if a display pixel is covered by the image calculated before the gesture
+	 */
+	private boolean isCovered(double x, double y, FractalSnapshot snapshot)
+	{
+		double imageX = mapX(x, y);
+		double imageY = mapY(x, y);
+		return imageX >= 0 && imageX <= snapshot.width && imageY >= 0 && imageY <= snapshot.height;
+	}
+
+	private double mapX(double x, double y)
+	{
+		return matrix[Matrix.MSCALE_X]*x + matrix[Matrix.MSKEW_X]*y + matrix[Matrix.MTRANS_X];
+	}
+
+	private double mapY(double x, double y)
+	{
+		return matrix[Matrix.MSKEW_Y]*x + matrix[Matrix.MSCALE_Y]*y + matrix[Matrix.MTRANS_Y];
+	}
+}
@@ -0,0 +1,409 @@
+package my.potty.fract;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** Saves the progress of the render job into files, so that a long calculation can continue
+ *  where it stopped after the application is paused or its process is killed.
+ *
+ *  A checkpoint consists of a manifest (the snapshot, the anti aliasing setting and the position
+ *  of the calculation: stage, pass and the finished parts of the pass) and of the image cut into bands of BAND_WIDTH
+ *  columns, each in its own compressed file. Each file is written under a temporary name and
+ *  renamed when it is complete. The bands are written before the manifest, and only the bands
+ *  changed since the last checkpoint are written again. All files of one render job carry its
+ *  job id - a checkpoint whose bands don't match the manifest is not used.
+ *
+ *  The checkpoint is also what the application shows first after it is started - the bands are
+ *  memory mapped and decompressed straight into the image, so the last frame appears before
+ *  anything is calculated.
+ *
+ *  The drawing thread only hands over a copy of the changed columns of the image - the two buffers 
+ *  are swapped between the threads, so each offer copies the columns changed since the last one plus 
+ *  the columns the swapped buffer missed. The compressing and writing is done
+ *  by this thread with the lowest priority, so the drawing thread never waits for the disk.
+ *  If the previous checkpoint is still being written, the new one waits until it is done and
+ *  replaces any other checkpoint waiting (their changed columns are merged).
+ *
+ * @author Pottry
+ *
+ */
+class RenderCheckpoint extends Thread
+{
+	private static final int 	MAGIC 	 	= 0x46434B32; // "FCK2" - identifies the format of the files
+	private static final int 	BAND_WIDTH 	= 64; 		  // Number of columns of the image in one file
+	private static final int 	BAND_HEADER_SIZE = 16; 	  // magic, job id, compressed length
+	private static final String MANIFEST 	= "checkpoint"; //$NON-NLS-1$
+	private static final String BAND 		= "band";		//$NON-NLS-1$
+	private static final String SUFFIX 		= ".bin"; 		//$NON-NLS-1$
+	private static final String TEMP_SUFFIX = ".tmp"; 		//$NON-NLS-1$
+
+	/** A checkpoint read from the files */
+	static final class Saved
+	{
+		final long 			  jobId;
+		final FractalSnapshot snapshot;
+		final boolean 		  antialiasing;
+		final int 			  stage, pass; // Where the calculation continues
+		final long[] 		  done; 	   // Bit for each finished cell of the pass (null - nothing of it is finished)
+		final IterationBuffer image;
+
+		Saved(long jobId, FractalSnapshot snapshot, boolean antialiasing, int stage, int pass, long[] done, IterationBuffer image)
+		{
+			this.jobId 		  = jobId;
+			this.snapshot 	  = snapshot;
+			this.antialiasing = antialiasing;
+			this.stage 		  = stage;
+			this.pass 		  = pass;
+			this.done 		  = done;
+			this.image 		  = image;
+		}
+	}
+
+	private final File directory;
+
+	// Checkpoint waiting to be written - guarded by this
+	private boolean 		bPending = false;
+	private boolean 		bFinishing = false; // The thread ends when there is nothing more to write
+	private long 			lPendingJobId;
+	private FractalSnapshot pendingSnapshot;
+	private boolean 		bPendingAntialiasing;
+	private int 			iPendingStage, iPendingPass;
+	private long[] 			pendingDone;
+	private int 			iPendingDirtyLeft, iPendingDirtyRight; // Columns changed since the last written checkpoint
+	private IterationBuffer pendingImage;
+	private int 			iStaleLeft = Integer.MAX_VALUE, iStaleRight = 0; // Columns of pendingImage older than the last offered checkpoint
+
+	// Checkpoint being written - used only by this thread
+	private long 			lJobId;
+	private FractalSnapshot snapshot;
+	private boolean 		bAntialiasing;
+	private int 			iStage, iPass;
+	private long[] 			done;
+	private int 			iDirtyLeft, iDirtyRight;
+	private IterationBuffer image;
+	private boolean 		bWriteAll = false; // The last checkpoint failed - the bands it missed must be written with the next one
+	private final Deflater 	deflater = new Deflater(Deflater.BEST_SPEED);
+
+
+
+	/** Starts the thread writing the checkpoints
+	 *
+	 * @param directory - where the checkpoint is kept (created if needed)
+	 */
+	RenderCheckpoint(File directory)
+	{
+		this.directory = directory;
+		this.setPriority(MIN_PRIORITY);
+		this.setDaemon(true);
+		this.start();
+	}
+
+
+	/** Hands a checkpoint over to be written. Called by the drawing thread, never waits for the disk.
+	 *
+	 * @param jobId 	   - identifies the render job
+	 * @param snapshot 	   - settings of the render job
+	 * @param antialiasing - if the render job uses anti aliasing
+	 * @param stage 	   - stage at which the calculation continues
+	 * @param pass 		   - pass of the stage at which the calculation continues
+	 * @param done 		   - bit for each finished cell of the pass (null - nothing of it is finished; not copied)
+	 * @param source 	   - the image (its changed columns are copied)
+	 * @param dirtyLeft    - the first column changed since the last offered checkpoint
+	 * @param dirtyRight   - the column after the last changed one
+	 */
+	synchronized void offer(long jobId, FractalSnapshot snapshot, boolean antialiasing,
+							int stage, int pass, long[] done,
+							IterationBuffer source, int dirtyLeft, int dirtyRight)
+	{
+		if(pendingImage == null || pendingImage.width != source.width || pendingImage.height != source.height || 
+		   (pendingImage.wide != null) != (source.wide != null))
+		{
+			pendingImage = new IterationBuffer(source);
+		}
+		else
+		{
+			int left  = Math.max(0, 			Math.min(dirtyLeft,  iStaleLeft));
+			int right = Math.min(source.width, Math.max(dirtyRight, iStaleRight));
+			if(left < right)
+				pendingImage.copy(source, left, 0, left, 0, right - left, source.height);
+		}
+		iStaleLeft  = Integer.MAX_VALUE;
+		iStaleRight = 0;
+
+		// A checkpoint which was not written yet is replaced - its changes must be written with this one
+		if(bPending)
+		{
+			dirtyLeft  = Math.min(dirtyLeft,  iPendingDirtyLeft);
+			dirtyRight = Math.max(dirtyRight, iPendingDirtyRight);
+		}
+
+		lPendingJobId 		 = jobId;
+		pendingSnapshot 	 = snapshot;
+		bPendingAntialiasing = antialiasing;
+		iPendingStage 		 = stage;
+		iPendingPass 		 = pass;
+		pendingDone 		 = done;
+		iPendingDirtyLeft 	 = dirtyLeft;
+		iPendingDirtyRight 	 = dirtyRight;
+		bPending = true;
+		notifyAll();
+	}
+
+
+	/** Ends the thread once the checkpoint waiting to be written (if any) is written.
+	 *  No checkpoints should be offered afterwards.
+	 */
+	synchronized void finish()
+	{
+		bFinishing = true;
+		notifyAll();
+	}
+
+
+	@Override
+	public void run()
+	{
+		while(true)
+		{
+			synchronized(this)
+			{
+				while(bPending == false)
+				{
+					if(bFinishing)
+						return;
+					try{wait();}catch(InterruptedException e){e.printStackTrace();}
+				}
+
+				// Take the pending checkpoint - its buffer is swapped, so the drawing thread can offer another one meanwhile
+				IterationBuffer temp = image;
+				image 		  = pendingImage;
+				pendingImage  = temp;
+				lJobId 		  = lPendingJobId;
+				snapshot 	  = pendingSnapshot;
+				bAntialiasing = bPendingAntialiasing;
+				iStage 		  = iPendingStage;
+				iPass 		  = iPendingPass;
+				done 		  = pendingDone;
+				iDirtyLeft 	  = iPendingDirtyLeft;
+				iDirtyRight   = iPendingDirtyRight;
+				bPending 	  = false;
+
+				// The buffer handed back misses the columns offered since it was taken
+				iStaleLeft 	  = iDirtyLeft;
+				iStaleRight   = iDirtyRight;
+			}
+
+			try
+			{
+				write();
+				bWriteAll = false;
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+				bWriteAll = true;
+			}
+		}
+	}
+
+
+	/** Writes the changed bands and then the manifest
+	 */
+	private void write() throws IOException
+	{
+		directory.mkdirs();
+
+		if(bWriteAll)
+		{
+			iDirtyLeft  = 0;
+			iDirtyRight = image.width;
+		}
+
+		int bands = (image.width + BAND_WIDTH - 1)/BAND_WIDTH;
+		for(int band=iDirtyLeft/BAND_WIDTH; band<bands && band*BAND_WIDTH<iDirtyRight; band++)
+		{
+			int left  = band*BAND_WIDTH;
+			int width = Math.min(BAND_WIDTH, image.width - left);
+			IterationBuffer columns = new IterationBuffer(width, image.height, snapshot.iterationsLimmit);
+			columns.copy(image, left, 0, 0, 0, width, image.height);
+			byte[] compressed = columns.compress(deflater);
+
+			DataOutputStream out = create(BAND + band);
+			try
+			{
+				out.writeInt(MAGIC);
+				out.writeLong(lJobId);
+				out.writeInt(compressed.length);
+				out.write(compressed);
+			}
+			finally
+			{
+				close(out);
+			}
+			commit(BAND + band);
+		}
+
+		DataOutputStream out = create(MANIFEST);
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeLong(lJobId);
+			snapshot.writeTo(out);
+			out.writeBoolean(bAntialiasing);
+			out.writeInt(iStage);
+			out.writeInt(iPass);
+			out.writeInt(done != null ? done.length : 0);
+			for(int i=0; done!=null && i<done.length; i++)
+			{
+				out.writeLong(done[i]);
+			}
+		}
+		finally
+		{
+			close(out);
+		}
+		commit(MANIFEST);
+	}
+
+
+	/** Reads the last complete checkpoint
+	 *
+	 * @param directory - where the checkpoint is kept
+	 * @return - the checkpoint or null if there is none (or it can't be used)
+	 */
+	static Saved load(File directory)
+	{
+		DataInputStream in = null;
+		try
+		{
+			in = open(new File(directory, MANIFEST + SUFFIX));
+			if(in == null || in.readInt() != MAGIC)
+				return null;
+
+			long 			jobId 		 = in.readLong();
+			FractalSnapshot snapshot 	 = FractalSnapshot.readFrom(in);
+			boolean 		antialiasing = in.readBoolean();
+			int 			stage 		 = in.readInt();
+			int 			pass 		 = in.readInt();
+			int 			length 		 = in.readInt();
+			if(length < 0 || length > (snapshot.width*snapshot.height)/64 + 1)
+				throw new IOException("Damaged checkpoint"); //$NON-NLS-1$
+			long[] 			done 		 = (length > 0) ? new long[length] : null;
+			for(int i=0; i<length; i++)
+			{
+				done[i] = in.readLong();
+			}
+			close(in);
+			in = null;
+
+			// Read the bands. They are mapped - the compressed data is read straight from the page cache.
+			IterationBuffer image 	 = new IterationBuffer(snapshot.width, snapshot.height, snapshot.iterationsLimmit);
+			Inflater 		inflater = new Inflater();
+			int 			bands 	 = (snapshot.width + BAND_WIDTH - 1)/BAND_WIDTH;
+			for(int band=0; band<bands; band++)
+			{
+				byte[] compressed = readBand(new File(directory, BAND + band + SUFFIX), jobId);
+				if(compressed == null)
+					return null; // Missing, damaged or belongs to another render job
+
+				int left  = band*BAND_WIDTH;
+				int width = Math.min(BAND_WIDTH, snapshot.width - left);
+				IterationBuffer columns = new IterationBuffer(width, snapshot.height, snapshot.iterationsLimmit);
+				if(columns.decompress(compressed, inflater) == false)
+					return null;
+				image.copy(columns, 0, 0, left, 0, width, snapshot.height);
+			}
+
+			return new Saved(jobId, snapshot, antialiasing, stage, pass, done, image);
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+		finally
+		{
+			close(in);
+		}
+	}
+
+
+	/** Reads the compressed columns of one band
+	 *
+	 * @param file  - the file of the band
+	 * @param jobId - the render job the band must belong to
+	 * @return - the compressed columns or null if the file can't be used
+	 */
+	private static byte[] readBand(File file, long jobId) throws IOException
+	{
+		if(file.exists() == false)
+			return null;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+		try
+		{
+			MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			if(mapped.remaining() < BAND_HEADER_SIZE || mapped.getInt() != MAGIC || mapped.getLong() != jobId)
+				return null;
+
+			int length = mapped.getInt();
+			if(length != mapped.remaining())
+				return null;
+
+			byte[] compressed = new byte[length];
+			mapped.get(compressed);
+			return compressed;
+		}
+		finally
+		{
+			close(raf);
+		}
+	}
+
+
+	private DataOutputStream create(String name) throws IOException
+	{
+		return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(directory, name + TEMP_SUFFIX))));
+	}
+
+
+	/** Gives the completely written temporary file its final name, replacing the old file at once
+	 */
+	private void commit(String name) throws IOException
+	{
+		File temp = new File(directory, name + TEMP_SUFFIX);
+		if(temp.renameTo(new File(directory, name + SUFFIX)) == false)
+		{
+			temp.delete();
+			throw new IOException("Can't rename " + temp); //$NON-NLS-1$
+		}
+	}
+
+
+	private static DataInputStream open(File file) throws IOException
+	{
+		if(file.exists() == false)
+			return null;
+		return new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+	}
+
+
+	private static void close(Closeable closeable)
+	{
+		if(closeable == null)
+			return;
+		try{closeable.close();}catch(IOException e){e.printStackTrace();}
+	}
+}
@@ -0,0 +1,28 @@
+package my.potty.fract;
+
+/** Decides how much of the CPU the fractal calculation may use.
+ *
+ *  The drawer asks the policy before each pass of the calculation, so a change of the power
+ *  state takes effect within a fraction of a second.
+ *
+ * @author Pottry
+ *
+ */
+public interface RenderPolicy
+{
+	/** Returns how many threads may calculate the fractal at the same time
+	 *
+	 * @param signals 	 - the power state of the device
+	 * @param maxWorkers - the number of threads available (at least 1)
+	 * @return - number of threads from 1 to maxWorkers
+	 */
+	public int getWorkersCount(PowerSignals signals, int maxWorkers);
+
+	/** Returns the duty cycle of the calculating threads - the part of the time they may calculate.
+	 *  The rest of the time they sleep.
+	 *
+	 * @param signals - the power state of the device
+	 * @return - duty cycle from 0 (exclusive) to 1 (the threads never sleep)
+	 */
+	public float getDutyCycle(PowerSignals signals);
+}
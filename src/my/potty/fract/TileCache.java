@@ -0,0 +1,338 @@
+package my.potty.fract;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import my.potty.fract.FractalCalculator.FractalTypes;
+
+/** Keeps the calculated images cut into square tiles of the complex plane, so that they can
+ *  be reused as a preview when the user zooms out and back in, or returns to a visited place.
+ *
+ *  The tiles form a quadtree (pyramid): the plane is cut into squares with side 2^-level
+ *  and each square has TILE_SIZE x TILE_SIZE samples. A calculated image is stored into the
+ *  tiles of the level whose samples are the closest to its pixels. A new image is assembled
+ *  from the tiles of the level nearest to its pixels, with the gaps filled from the coarser
+ *  levels. Unlike PrefetchCache, the tiles don't depend on the position, size or rotation of
+ *  the window, but their samples are not exactly at the pixels - so the assembled image is
+ *  only a preview which is refined by the calculation.
+ *
+ *  The tiles are identified by the fractal type, the Julia constant and the iterations limit,
+ *  their level and position. The memory taken by the tiles is bounded - when it is full the
+ *  least recently used tiles are dropped. If there is a DiskTileStore, each changed tile is
+ *  written into it and the tiles which are not in the memory are looked up there, so the
+ *  visited places are kept between the runs of the application. Used only by the drawing thread.
+ *
+ * @author Pottry
+ *
+ */
+class TileCache
+{
+	private static final int 	TILE_SIZE 	   = 64; // Number of samples along each side of a tile
+	private static final int 	COARSER_LEVELS = 3;  // How many coarser levels are used for filling the gaps
+	private static final double LOG_2 		   = Math.log(2);
+
+	/** Identifies a tile */
+	private static final class Key
+	{
+		final FractalTypes type;
+		final double 	   constantRe, constantIm;
+		final int 		   iterationsLimmit;
+		final int 		   level;
+		final long 		   x, y; // Position of the tile (in tile sides)
+
+		Key(FractalSnapshot snapshot, int level, long x, long y)
+		{
+			this.type 			  = snapshot.fractalType;
+			this.constantRe 	  = snapshot.complexConstantRe;
+			this.constantIm 	  = snapshot.complexConstantIm;
+			this.iterationsLimmit = snapshot.iterationsLimmit;
+			this.level 			  = level;
+			this.x 				  = x;
+			this.y 				  = y;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if(o instanceof Key == false)
+				return false;
+
+			Key other = (Key)o;
+			return x == other.x && y == other.y && level == other.level &&
+				   iterationsLimmit == other.iterationsLimmit && type == other.type &&
+				   constantRe == other.constantRe && constantIm == other.constantIm;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			long bits = Double.doubleToLongBits(constantRe)*31 + Double.doubleToLongBits(constantIm);
+			bits = bits*31 + x;
+			bits = bits*31 + y;
+			return (int)(bits ^ (bits >>> 32)) + level*17 + iterationsLimmit*7 + type.ordinal();
+		}
+
+		/** Returns the name under which the tile is stored on the disk */
+		String getFileName()
+		{
+			return type.name() + '_' + iterationsLimmit + '_' + 
+				   Long.toHexString(Double.doubleToLongBits(constantRe)) + '_' + 
+				   Long.toHexString(Double.doubleToLongBits(constantIm)) + '_' + 
+				   level + '_' + x + '_' + y;
+		}
+	}
+
+	private final LinkedHashMap<Key, IterationBuffer> tiles = new LinkedHashMap<Key, IterationBuffer>(64, 0.75f, true); // The least recently used first
+	private final int 			maxBytes;
+	private int 	  			iBytes = 0;
+	private final DiskTileStore diskStore; // null if the tiles are kept only in the memory
+
+
+
+	/** Creates an empty cache
+	 *
+	 * @param maxBytes  - the most memory the tiles may take
+	 * @param diskStore - where the tiles are kept between the runs (may be null)
+	 */
+	TileCache(int maxBytes, DiskTileStore diskStore)
+	{
+		this.maxBytes  = maxBytes;
+		this.diskStore = diskStore;
+	}
+
+
+	/** Stores a calculated image into the tiles
+	 *
+	 * @param snapshot - the window of the image
+	 * @param image    - the image (points with value 0 are considered not calculated)
+	 */
+	void store(FractalSnapshot snapshot, IterationBuffer image)
+	{
+		if(snapshot.isInvertible() == false)
+			return;
+
+		int    level   = getLevel(snapshot.getPixelSize());
+		double side    = getTileSide(level);
+		double spacing = side/TILE_SIZE;
+		long[] bounds  = getTileBounds(snapshot, side);
+
+		for(long ty=bounds[1]; ty<=bounds[3]; ty++)
+		{
+			for(long tx=bounds[0]; tx<=bounds[2]; tx++)
+			{
+				Key 			key  = new Key(snapshot, level, tx, ty);
+				IterationBuffer tile = getTile(key);
+				boolean 		bNew = (tile == null);
+				boolean 		bChanged = false;
+
+				if(bNew)
+					tile = new IterationBuffer(TILE_SIZE, TILE_SIZE, snapshot.iterationsLimmit);
+
+				for(int j=0; j<TILE_SIZE; j++)
+				{
+					double re0 = tx*side + 0.5*spacing;
+					double im  = ty*side + (j+0.5)*spacing;
+
+					for(int i=0; i<TILE_SIZE; i++)
+					{
+						double re = re0 + i*spacing;
+						double x  = snapshot.getPixel_X(re, im) + 0.5;
+						double y  = snapshot.getPixel_Y(re, im) + 0.5;
+						if(x < 0 || y < 0 || x >= image.width || y >= image.height)
+							continue;
+
+						int iterations = image.get((int)x, (int)y);
+						if(iterations >= 0 && iterations != tile.get(i, j))
+						{
+							tile.set(i, j, iterations);
+							bChanged = true;
+						}
+					}
+				}
+
+				// A tile whose samples are all the same as before is not written again
+				if(bChanged)
+				{
+					if(bNew)
+						add(key, tile);
+					if(diskStore != null)
+						diskStore.write(key.getFileName(), tile);
+				}
+			}
+		}
+	}
+
+
+	/** Returns a tile from the memory or from the disk
+	 *
+	 * @return - the tile or null if it is not cached
+	 */
+	private IterationBuffer getTile(Key key)
+	{
+		IterationBuffer tile = tiles.get(key);
+		if(tile == null && diskStore != null)
+		{
+			tile = diskStore.read(key.getFileName(), key.iterationsLimmit);
+			if(tile != null && (tile.width != TILE_SIZE || tile.height != TILE_SIZE))
+				tile = null; // Stored with a different tile size
+			if(tile != null)
+				add(key, tile);
+		}
+		return tile;
+	}
+
+
+	/** Adds a tile into the memory and drops the least recently used tiles if the memory is full
+	 */
+	private void add(Key key, IterationBuffer tile)
+	{
+		tiles.put(key, tile);
+		iBytes += tile.getByteCount();
+
+		Iterator<IterationBuffer> it = tiles.values().iterator();
+		while(iBytes > maxBytes && it.hasNext())
+		{
+			IterationBuffer eldest = it.next();
+			if(eldest == tile)
+				break; // Keep the new one
+			iBytes -= eldest.getByteCount();
+			it.remove();
+		}
+	}
+
+
+	/** Fills the target image with the samples of the cached tiles. The tiles of the level nearest
+	 *  to the pixels of the target (or of the next finer level) replace the current values of the
+	 *  target. The coarser levels are used only for the points which are not inspected.
+	 *
+	 * @param snapshot - the window of the target image
+	 * @param target   - the target image
+	 * @return - number of points taken from the tiles
+	 */
+	int assemble(FractalSnapshot snapshot, IterationBuffer target)
+	{
+		if(snapshot.isInvertible() == false)
+			return 0;
+
+		int nearest = getLevel(snapshot.getPixelSize());
+		int iCount  = 0;
+
+		iCount += draw(snapshot, target, nearest+1, true);
+		iCount += draw(snapshot, target, nearest, 	true); // On top of the finer one - its samples are closer to the pixels
+
+		for(int level=nearest-1; level>=nearest-COARSER_LEVELS; level--)
+		{
+			iCount += draw(snapshot, target, level, false);
+		}
+		return iCount;
+	}
+
+
+	/** Draws the tiles of one level into the target image
+	 *
+	 * @param overwrite - if false, only the points which are not inspected are changed
+	 * @return - number of changed points
+	 */
+	private int draw(FractalSnapshot snapshot, IterationBuffer target, int level, boolean overwrite)
+	{
+		double side    = getTileSide(level);
+		double spacing = side/TILE_SIZE;
+		long[] bounds  = getTileBounds(snapshot, side);
+		int    iCount  = 0;
+
+		for(long ty=bounds[1]; ty<=bounds[3]; ty++)
+		{
+			for(long tx=bounds[0]; tx<=bounds[2]; tx++)
+			{
+				IterationBuffer tile = getTile(new Key(snapshot, level, tx, ty));
+				if(tile == null)
+					continue;
+
+				// The pixels of the target covered by the tile
+				double tileX = tx*side;
+				double tileY = ty*side;
+				int[]  box 	 = getPixelBounds(snapshot, tileX, tileY, side);
+
+				for(int y=box[1]; y<=box[3]; y++)
+				{
+					for(int x=box[0]; x<=box[2]; x++)
+					{
+						int i = (int)Math.floor((snapshot.getRealCoord_X(x, y) - tileX)/spacing);
+						int j = (int)Math.floor((snapshot.getRealCoord_Y(x, y) - tileY)/spacing);
+						if(i < 0 || j < 0 || i >= TILE_SIZE || j >= TILE_SIZE)
+							continue;
+
+						int iterations = tile.get(i, j);
+						if(iterations >= 0 && (overwrite || target.get(x, y) < 0))
+						{
+							target.set(x, y, iterations);
+							iCount++;
+						}
+					}
+				}
+			}
+		}
+		return iCount;
+	}
+
+
+	/** Returns the level whose samples are the closest to the supplied distance
+	 */
+	private static int getLevel(double pixelSize)
+	{
+		return (int)Math.round(-Math.log(pixelSize*TILE_SIZE)/LOG_2);
+	}
+
+
+	/** Returns the side of the tiles of a level
+	 */
+	private static double getTileSide(int level)
+	{
+		return Math.pow(2, -level);
+	}
+
+
+	/** Returns the range of the tiles covering the window: {left, top, right, bottom} (inclusive)
+	 */
+	private static long[] getTileBounds(FractalSnapshot snapshot, double side)
+	{
+		int    right  = snapshot.width-1;
+		int    bottom = snapshot.height-1;
+		double minRe  = Math.min(Math.min(snapshot.getRealCoord_X(0, 0), snapshot.getRealCoord_X(right, 0)),
+								 Math.min(snapshot.getRealCoord_X(0, bottom), snapshot.getRealCoord_X(right, bottom)));
+		double maxRe  = Math.max(Math.max(snapshot.getRealCoord_X(0, 0), snapshot.getRealCoord_X(right, 0)),
+								 Math.max(snapshot.getRealCoord_X(0, bottom), snapshot.getRealCoord_X(right, bottom)));
+		double minIm  = Math.min(Math.min(snapshot.getRealCoord_Y(0, 0), snapshot.getRealCoord_Y(right, 0)),
+								 Math.min(snapshot.getRealCoord_Y(0, bottom), snapshot.getRealCoord_Y(right, bottom)));
+		double maxIm  = Math.max(Math.max(snapshot.getRealCoord_Y(0, 0), snapshot.getRealCoord_Y(right, 0)),
+								 Math.max(snapshot.getRealCoord_Y(0, bottom), snapshot.getRealCoord_Y(right, bottom)));
+
+		return new long[]{(long)Math.floor(minRe/side), (long)Math.floor(minIm/side),
+						  (long)Math.floor(maxRe/side), (long)Math.floor(maxIm/side)};
+	}
+
+
+	/** Returns the range of the pixels of the window covered by a square of the plane:
+	 *  {left, top, right, bottom} (inclusive, clipped to the window)
+	 */
+	private static int[] getPixelBounds(FractalSnapshot snapshot, double re, double im, double side)
+	{
+		double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+		double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+
+		for(int corner=0; corner<4; corner++)
+		{
+			double cornerRe = re + ((corner & 1) != 0 ? side : 0);
+			double cornerIm = im + ((corner & 2) != 0 ? side : 0);
+			double x = snapshot.getPixel_X(cornerRe, cornerIm);
+			double y = snapshot.getPixel_Y(cornerRe, cornerIm);
+			minX = Math.min(minX, x);
+			maxX = Math.max(maxX, x);
+			minY = Math.min(minY, y);
+			maxY = Math.max(maxY, y);
+		}
+
+		return new int[]{(int)Math.max(0, Math.floor(minX)), 			   (int)Math.max(0, Math.floor(minY)),
+						 (int)Math.min(snapshot.width-1, Math.ceil(maxX)), (int)Math.min(snapshot.height-1, Math.ceil(maxY))};
+	}
+}
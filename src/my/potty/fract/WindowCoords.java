@@ -271,9 +271,10 @@ public class WindowCoords
     
     	AffineTransform at = new AffineTransform();
     	
-    	// Amount of scroll 
-    	double deltaX = getCartWidth() *(-dx/widthInPixels);
-    	double deltaY = getCartHeight()*(dy/heightInPixels);
+    	// Amount of scroll. The corners are (widthInPixels-1) pixels apart, so that moving
+    	// by a whole number of pixels maps the pixels exactly onto the old ones.
+    	double deltaX = getCartWidth() *(-dx/Math.max(widthInPixels-1, 1));
+    	double deltaY = getCartHeight()*(dy/Math.max(heightInPixels-1, 1));
     	
     	double X1 = getCartCoordOfLowLeftCorner_X();
     	double Y1 = getCartCoordOfLowLeftCorner_Y();
@@ -335,6 +336,33 @@ public class WindowCoords
     
     
     
+    /** Places the window into the Cartesian plane by the coordinates of its upper left pixel 
+     *  and the steps between the pixels. Used for returning to a window seen before, which 
+     *  can be rotated and thus can't be set by setDimensions().
+     * 
+     * @param originX - x-coordinate of the pixel (0,0)
+     * @param originY - y-coordinate of the pixel (0,0)
+     * @param stepXx  - change of the x-coordinate when moving one pixel to the right
+     * @param stepXy  - change of the y-coordinate when moving one pixel to the right
+     * @param stepYx  - change of the x-coordinate when moving one pixel down
+     * @param stepYy  - change of the y-coordinate when moving one pixel down
+     */
+    public void setAffine(double originX, double originY, 
+    					  double stepXx,  double stepXy, 
+    					  double stepYx,  double stepYy)
+    {
+    	int iter = 0;
+    	for(int y=0; y<heightInPixels; y++)
+    	{
+    		for(int x=0; x<widthInPixels; x++)
+    		{
+    			cartesianCoords[iter++] = originX + x*stepXx + y*stepYx;
+    			cartesianCoords[iter++] = originY + x*stepXy + y*stepYy;
+    		}
+    	}
+    }
+    
+    
     /** 
      * Initializes the drawingAreaCoords_original[] and drawingAreaCoords[]  
      */
@@ -346,7 +374,9 @@ public class WindowCoords
     	if(cartesianCoords == null 				    || // has not been allocated till now
     	   cartesianCoords.length != iNewBufferSize   )// we need different buffer size
     	{
-    		cartesianCoords = new double[iNewBufferSize];	
+    		BufferPool pool = BufferPool.getInstance();
+    		pool.release(cartesianCoords, BufferPool.Subsystem.COORDINATES);
+    		cartesianCoords = pool.leaseDoubles(iNewBufferSize, BufferPool.Subsystem.COORDINATES);
     	}
     		        	
     	int iter = 0;	